@@ -0,0 +1,162 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Tracks whether a Drupal database is reachable. After repeated connection
+ * failures the circuit opens and connection attempts fail immediately instead
+ * of waiting for network timeouts. A single probe is allowed after a back-off
+ * that doubles with every failed probe. A successful probe closes the circuit.
+ */
+public class CircuitBreaker {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	public enum State {
+		/**
+		 * Database is considered reachable
+		 */
+		CLOSED,
+		/**
+		 * Database is considered down, attempts fail fast
+		 */
+		OPEN,
+		/**
+		 * A probe is testing whether the database is back
+		 */
+		HALF_OPEN
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long initialBackoff;
+	private final long maxBackoff;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long backoff;
+
+	/**
+	 * Whether a probe has been scheduled for the open circuit
+	 */
+	private boolean probeScheduled;
+
+	/**
+	 * @param name
+	 *            Name of Drupal instance used in logs and errors
+	 * @param failureThreshold
+	 *            Number of consecutive failures that open the circuit
+	 * @param initialBackoff
+	 *            Milliseconds until the first probe
+	 * @param maxBackoff
+	 *            Upper limit of milliseconds between probes
+	 */
+	public CircuitBreaker(String name, int failureThreshold,
+			long initialBackoff, long maxBackoff) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.backoff = initialBackoff;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return Milliseconds to wait before the next probe
+	 */
+	public synchronized long getBackoff() {
+		return backoff;
+	}
+
+	/**
+	 * @throws SQLException
+	 *             Unless the circuit is closed
+	 */
+	public synchronized void check() throws SQLException {
+		if (state != State.CLOSED) {
+			throw new SQLException("Database of " + name
+					+ " is unreachable, retrying in the background.");
+		}
+	}
+
+	/**
+	 * Records a successful connection attempt which closes the circuit.
+	 */
+	public synchronized void recordSuccess() {
+		if (state != State.CLOSED) {
+			LOGGER.info("Database of " + name + " is reachable again.");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		probeScheduled = false;
+		backoff = initialBackoff;
+	}
+
+	/**
+	 * Records a failed connection attempt.
+	 *
+	 * @return True if the circuit has just been opened and a probe needs to be
+	 *         scheduled after {@link #getBackoff()}
+	 */
+	public synchronized boolean recordFailure() {
+		switch (state) {
+		case HALF_OPEN:
+			backoff = Math.min(backoff * 2, maxBackoff);
+			state = State.OPEN;
+			probeScheduled = true;
+			return true;
+		case CLOSED:
+			if (++failures < failureThreshold) {
+				return false;
+			}
+			backoff = initialBackoff;
+			state = State.OPEN;
+			probeScheduled = true;
+			LOGGER.warning("Database of " + name + " is unreachable after "
+					+ failures + " attempts. Failing fast until it is back.");
+			return true;
+		default:
+			// Already open and a probe is scheduled
+			return false;
+		}
+	}
+
+	/**
+	 * Allows a single probe once the circuit is open.
+	 *
+	 * @return True if the caller may probe the database
+	 */
+	public synchronized boolean startProbe() {
+		if (state != State.OPEN) {
+			return false;
+		}
+		state = State.HALF_OPEN;
+		probeScheduled = false;
+		return true;
+	}
+
+	/**
+	 * Records that the probe requested by {@link #recordFailure()} could not
+	 * be scheduled. The circuit stays open.
+	 */
+	public synchronized void cancelProbe() {
+		probeScheduled = false;
+	}
+
+	/**
+	 * @return True if the circuit is open without a scheduled probe. The
+	 *         caller then needs to schedule one after {@link #getBackoff()}.
+	 */
+	public synchronized boolean claimProbe() {
+		if (state != State.OPEN || probeScheduled) {
+			return false;
+		}
+		probeScheduled = true;
+		return true;
+	}
+}
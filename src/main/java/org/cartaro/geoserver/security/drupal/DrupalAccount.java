@@ -0,0 +1,53 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.SortedSet;
+
+import org.geoserver.security.impl.GeoServerRole;
+
+/**
+ * Everything needed to authenticate and authorize a Drupal user as read by
+ * {@link DrupalUserGroupService#loadAccount(String)}.
+ */
+public class DrupalAccount {
+	private final String passwordHash;
+	private final boolean active;
+	private final boolean installing;
+	private final SortedSet<GeoServerRole> roles;
+
+	public DrupalAccount(String passwordHash, boolean active,
+			boolean installing, SortedSet<GeoServerRole> roles) {
+		this.passwordHash = passwordHash;
+		this.active = active;
+		this.installing = installing;
+		this.roles = roles;
+	}
+
+	/**
+	 * @return Stored password hash or null if there is no such user
+	 */
+	public String getPasswordHash() {
+		return passwordHash;
+	}
+
+	/**
+	 * @return True if the user exists and is not blocked
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return TRUE whilst the bound Drupal instance is still installing its
+	 *         core
+	 */
+	public boolean isInstalling() {
+		return installing;
+	}
+
+	/**
+	 * @return Prefixed GeoServer roles of the user
+	 */
+	public SortedSet<GeoServerRole> getRoles() {
+		return roles;
+	}
+}
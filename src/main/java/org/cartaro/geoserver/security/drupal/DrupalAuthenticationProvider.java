@@ -4,11 +4,10 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,7 +15,6 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.codec.binary.Hex;
 import org.geoserver.security.GeoServerAuthenticationProvider;
-import org.geoserver.security.impl.GeoServerRole;
 import org.geotools.util.logging.Logging;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -30,12 +28,25 @@ public class DrupalAuthenticationProvider extends
 	protected static Logger LOGGER = Logging
 			.getLogger("org.geoserver.security");
 
-	private static final int DRUPAL_HASH_LENGTH = 55;
-	private DrupalDatabaseConnector connector;
+	/**
+	 * Most recently initialized provider by configuration name. A provider is
+	 * replaced by a new instance whenever its configuration is saved.
+	 */
+	private static final ConcurrentHashMap<String, DrupalAuthenticationProvider> providersByName = new ConcurrentHashMap<String, DrupalAuthenticationProvider>();
+
 	private DrupalUserGroupService userGroupService;
+	private VerifiedCredentialCache credentialCache;
+
+	/**
+	 * Coalesces concurrent verifications of the same credentials
+	 */
+	private final SingleFlight<String, Boolean> verifications = new SingleFlight<String, Boolean>();
 
 	public DrupalAuthenticationProvider() {
 		userGroupService = new DrupalUserGroupService();
+		// Roles and permissions are kept current by the registered user group
+		// services
+		userGroupService.setAccountsOnly(true);
 	}
 
 	@Override
@@ -44,22 +55,30 @@ public class DrupalAuthenticationProvider extends
 			throws IOException {
 		LOGGER.info("Reloading configuration " + config.getName());
 
-		if (connector != null) {
-			connector.close();
-		}
-		try {
-			connector = new DrupalDatabaseConnector(
-					(DrupalSecurityServiceConfig) config);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException("Cannot find credential store for "
-					+ config.getName());
-		}
+		final DrupalSecurityServiceConfig drupalConfig = (DrupalSecurityServiceConfig) config;
+		credentialCache = new VerifiedCredentialCache(
+				drupalConfig.getCredentialCacheSize(),
+				drupalConfig.getCredentialCacheTimeToLive());
 
 		try {
 			userGroupService.initializeFromConfig(config);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+
+		final DrupalAuthenticationProvider replaced = providersByName.put(
+				config.getName(), this);
+		if (replaced != null && replaced != this) {
+			replaced.dispose();
+		}
+	}
+
+	/**
+	 * Closes the connections of a provider that has been replaced.
+	 */
+	private void dispose() {
+		LOGGER.fine("Disposing replaced authentication provider");
+		userGroupService.dispose();
 	}
 
 	@Override
@@ -77,89 +96,98 @@ public class DrupalAuthenticationProvider extends
 
 		LOGGER.info("Drupal user tries to log in:" + token.getPrincipal()
 				+ " pw:" + token.getCredentials());
+		final Object passwordRaw = token.getCredentials();
+		// Trim whitespace from the password because Drupal does this, too.
+		final String password = ((String) (passwordRaw == null ? ""
+				: passwordRaw)).trim();
+		
+		String drupalUserName;
 		try {
-			connector.connect();
-			
-			final Object passwordRaw = token.getCredentials();
-			// Trim whitespace from the password because Drupal does this, too.
-			final String password = ((String) (passwordRaw == null ? ""
-					: passwordRaw)).trim();
-			
-			String drupalUserName;
-			try {
-				drupalUserName = connector.stripInstancePrefix(token
-						.getPrincipal().toString());
-				LOGGER.info("Stripped user name: " + drupalUserName);
-			} catch (IllegalArgumentException e) {
-				// Prefix mismatch. State that this instance is not responsible
-				// for authenticating user.
-				return null;
-			}
-			boolean credentialsValid;
-
-			boolean drupalCurrentlyInstalling = connector
-					.isDrupalCurrentlyInstalling();
-			LOGGER.info("Drupal currently installing:"
-					+ drupalCurrentlyInstalling);
-
-			if (drupalCurrentlyInstalling) {
-				// Grant access to any Drupal instances that are currently being
-				// installed
-				credentialsValid = true;
-			} else {
-				ResultSet rs = connector.getResultSet(
-						"select pass from users where name=? and status=1",
-						drupalUserName);
-				boolean userFound = rs.next();
-				if (userFound == false) {
-					LOGGER.info("User not found in Drupal database: "
-							+ drupalUserName);
-					// User name is not in Drupal database
-					return null;
-				}
-				String passwordHash = rs.getString("pass");
-				credentialsValid = drupalUserCheckPassword((String) password,
-						passwordHash);
-			}
-			if (credentialsValid) {
-				LOGGER.info("User " + token.getPrincipal() + " authorized");
-
-				// Authorize user by setting its roles
-				Collection<GrantedAuthority> roles = new ArrayList<GrantedAuthority>();
-				
-				// Add roles that have been assigned in external Drupal instance
-				try {
-					SortedSet<GeoServerRole> serviceAssignedRoles = userGroupService
-							.getRolesForUser(token.getPrincipal().toString());
-					roles.addAll(serviceAssignedRoles);
-				} catch (IOException e) {
-					LOGGER.log(Level.SEVERE, "Failed to get roles for user.", e);
-					return null;
-				}
-
-				UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(
-						token.getPrincipal(), password, roles);
-				result.setDetails(token.getDetails());
-				LOGGER.info("Instructing GeoServer to accept user: "
-						+ token.getPrincipal());
-				LOGGER.info("Its roles:");
-				for (GrantedAuthority role : roles) {
-					LOGGER.info(role.getAuthority());
-				}
-				return result;
-			}
-			LOGGER.info("User " + token.getPrincipal() + " failed to authorize");
+			drupalUserName = userGroupService.stripInstancePrefix(token
+					.getPrincipal().toString());
+			LOGGER.info("Stripped user name: " + drupalUserName);
+		} catch (IllegalArgumentException e) {
+			// Prefix mismatch. State that this instance is not responsible
+			// for authenticating user.
 			return null;
-		} catch (SQLException e) {
+		}
+
+		// Password, status and roles are read at once
+		DrupalAccount account;
+		try {
+			account = userGroupService.loadAccount(token.getPrincipal()
+					.toString());
+		} catch (IOException e) {
 			LOGGER.log(
 					Level.SEVERE,
 					"Cannot verify credentials for Drupal user "
 							+ token.getPrincipal(), e);
 			return null;
 		}
-		finally {
-			connector.disconnect();
+		boolean credentialsValid;
+
+		LOGGER.info("Drupal currently installing:"
+				+ account.isInstalling());
+
+		if (account.isInstalling()) {
+			// Grant access to any Drupal instances that are currently being
+			// installed
+			credentialsValid = true;
+		} else {
+			final String passwordHash = account.getPasswordHash();
+			if (passwordHash == null || !account.isActive()) {
+				LOGGER.info("User not found in Drupal database: "
+						+ drupalUserName);
+				// User name is not in Drupal database
+				return null;
+			}
+			final String verifiedUserName = drupalUserName;
+			try {
+				// Hash only once for clients that send many requests at once
+				credentialsValid = verifications.execute(credentialCache
+						.getVerificationKey(drupalUserName, password, passwordHash),
+						new Callable<Boolean>() {
+							public Boolean call() {
+								if (credentialCache.isVerified(verifiedUserName,
+										password, passwordHash)) {
+									return true;
+								}
+								final boolean valid = drupalUserCheckPassword(
+										password, passwordHash);
+								if (valid) {
+									credentialCache.setVerified(verifiedUserName,
+											password, passwordHash);
+								}
+								return valid;
+							}
+						});
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Cannot verify credentials for Drupal user "
+						+ token.getPrincipal(), e);
+				return null;
+			}
+		}
+		if (credentialsValid) {
+			LOGGER.info("User " + token.getPrincipal() + " authorized");
+
+			// Authorize user by setting the roles that have been assigned in
+			// external Drupal instance
+			Collection<GrantedAuthority> roles = new ArrayList<GrantedAuthority>(
+					account.getRoles());
+
+			UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(
+					token.getPrincipal(), password, roles);
+			result.setDetails(token.getDetails());
+			LOGGER.info("Instructing GeoServer to accept user: "
+					+ token.getPrincipal());
+			LOGGER.info("Its roles:");
+			for (GrantedAuthority role : roles) {
+				LOGGER.info(role.getAuthority());
+			}
+			return result;
 		}
+		LOGGER.info("User " + token.getPrincipal() + " failed to authorize");
+		return null;
 	}
 
 	/**
@@ -213,37 +241,7 @@ public class DrupalAuthenticationProvider extends
 			LOGGER.severe("Algorithm not supported");
 			return null;
 		}
-
-		setting = setting.substring(0, 12);
-
-		int countLog2 = drupalPasswordGetCountLog2(setting);
-		String salt = setting.substring(4, 12);
-		int count = 1 << countLog2;
-
-		byte[] hash = phpHash(algo,
-				concat(salt.getBytes(), password.getBytes()), true);
-		do {
-			hash = phpHash(algo, concat(hash, password.getBytes()), true);
-			count = count - 1;
-		} while (count > 0);
-
-		int len = hash.length;
-		String output = setting + drupalPasswordBase64Encode(hash, len);
-		return output.substring(0, DRUPAL_HASH_LENGTH);
-	}
-
-	/**
-	 * Concatenates 2 byte arrays
-	 * 
-	 * @param first
-	 * @param second
-	 * @return All elements of first followed by all elements of second
-	 */
-	private byte[] concat(byte[] first, byte[] second) {
-		byte[] combination = new byte[first.length + second.length];
-		System.arraycopy(first, 0, combination, 0, first.length);
-		System.arraycopy(second, 0, combination, first.length, second.length);
-		return combination;
+		return DrupalPasswordHasher.get().crypt(password, setting);
 	}
 
 	/**
@@ -254,84 +252,6 @@ public class DrupalAuthenticationProvider extends
 	 * @return
 	 */
 	public String drupalPasswordBase64Encode(final byte[] hash, final int count) {
-		final StringBuilder output = new StringBuilder();
-		int i = 0;
-		final String itoa64 = drupalPasswordItoa64();
-		do {
-			// Integer need to be used to get common unsigned integer
-			// representation for shift and bitwise operators
-			int value = toPhpCharCode(hash[i++]);
-			output.append(itoa64.charAt(value & 0x3f));
-			if (i < count) {
-				value |= (toPhpCharCode(hash[i]) << 8);
-			}
-			output.append(itoa64.charAt((value >> 6) & 0x3f));
-			if (i++ >= count) {
-				break;
-			}
-			if (i < count) {
-				value |= (toPhpCharCode(hash[i]) << 16);
-			}
-			output.append(itoa64.charAt((value >> 12) & 0x3f));
-			if (i++ >= count) {
-				break;
-			}
-			output.append(itoa64.charAt((value >> 18) & 0x3f));
-		} while (i < count);
-		return output.toString();
-	}
-
-	/**
-	 * @param a
-	 *            Java byte representation
-	 * @return PHP byte representation (character value as in a PHP string)
-	 */
-	private int toPhpCharCode(byte a) {
-		int high = (0xF0 & a) >>> 4;
-		int low = 0x0F & a;
-		return (high << 4) | low;
-	}
-
-	/**
-	 * @see http://de.php.net/manual/en/function.hash.php
-	 * @param algo
-	 * @param bs
-	 * @param raw_output
-	 * @return
-	 */
-	private byte[] phpHash(String algo, byte[] bs, boolean raw_output) {
-		if (!"SHA-512".equals(algo)) {
-			LOGGER.severe("Algorithm not supported");
-			return null;
-		}
-		if (!raw_output) {
-			LOGGER.severe("Only raw data is supported by PHP hash reimplementation");
-		}
-		try {
-			return MessageDigest.getInstance("SHA-512").digest(bs);
-		} catch (NoSuchAlgorithmException e) {
-			LOGGER.log(Level.SEVERE, e.getMessage(), e);
-		}
-		// Hopefully signalize invalid data
-		return new byte[0];
-	}
-
-	/**
-	 * @see _password_get_count_log2 in includes/password.inc
-	 * @param settings
-	 * @return
-	 */
-	private int drupalPasswordGetCountLog2(String settings) {
-		String itoa64 = drupalPasswordItoa64();
-		return itoa64.indexOf(settings.charAt(3));
-	}
-
-	/**
-	 * @see http://api.drupal.org/api/drupal/includes!password.inc/function/
-	 *      _password_itoa64/7
-	 * @return
-	 */
-	private String drupalPasswordItoa64() {
-		return "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+		return DrupalPasswordHasher.base64Encode(hash, count);
 	}
 }
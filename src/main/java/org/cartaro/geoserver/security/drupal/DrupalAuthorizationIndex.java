@@ -0,0 +1,147 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.geoserver.security.AccessMode;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * Layer permissions of a Drupal workspace compiled for fast access checks.
+ * Role names are mapped to dense numbers and each layer and mode keeps a bit
+ * set of the roles that are granted access. Checking a user thus intersects
+ * two bit sets instead of comparing role names.
+ */
+public class DrupalAuthorizationIndex {
+	/**
+	 * Role name that grants access to everybody, see
+	 * {@link org.geoserver.security.impl.DataAccessRule#ANY}
+	 */
+	public static final String ANY = "*";
+
+	/**
+	 * Number of {@link #ANY} so that it is set in every user's bit set
+	 */
+	private static final int ANY_ID = 0;
+
+	private final Map<String, Integer> roleIds;
+	private final Map<String, BitSet> readLayers;
+	private final Map<String, BitSet> writeLayers;
+
+	/**
+	 * Layers everybody may read or write respectively
+	 */
+	private final Set<String> publicReadLayers;
+	private final Set<String> publicWriteLayers;
+
+	/**
+	 * @param readLayerRoles
+	 *            Names of roles that may read a layer by layer name
+	 * @param writeLayerRoles
+	 *            Names of roles that may write a layer by layer name
+	 */
+	public DrupalAuthorizationIndex(Map<String, Set<String>> readLayerRoles,
+			Map<String, Set<String>> writeLayerRoles) {
+		final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		ids.put(ANY, ANY_ID);
+		readLayers = compile(readLayerRoles, ids);
+		writeLayers = compile(writeLayerRoles, ids);
+		roleIds = Collections.unmodifiableMap(ids);
+		publicReadLayers = getPublicLayers(readLayers);
+		publicWriteLayers = getPublicLayers(writeLayers);
+	}
+
+	private static Set<String> getPublicLayers(Map<String, BitSet> layers) {
+		final HashSet<String> publicLayers = new HashSet<String>();
+		for (Map.Entry<String, BitSet> entry : layers.entrySet()) {
+			if (entry.getValue().get(ANY_ID)) {
+				publicLayers.add(entry.getKey());
+			}
+		}
+		return Collections.unmodifiableSet(publicLayers);
+	}
+
+	private static Map<String, BitSet> compile(
+			Map<String, Set<String>> layerRoles, HashMap<String, Integer> ids) {
+		final HashMap<String, BitSet> layers = new HashMap<String, BitSet>();
+		for (Map.Entry<String, Set<String>> entry : layerRoles.entrySet()) {
+			final BitSet roles = new BitSet();
+			for (String role : entry.getValue()) {
+				Integer id = ids.get(role);
+				if (id == null) {
+					id = ids.size();
+					ids.put(role, id);
+				}
+				roles.set(id);
+			}
+			layers.put(entry.getKey(), roles);
+		}
+		return Collections.unmodifiableMap(layers);
+	}
+
+	/**
+	 * @param layer
+	 *            Name of layer within the instance's workspace
+	 * @param mode
+	 * @return True if everybody is granted mode on layer, including anonymous
+	 *         users
+	 */
+	public boolean isPublic(String layer, AccessMode mode) {
+		if (mode == AccessMode.READ) {
+			return publicReadLayers.contains(layer);
+		}
+		if (mode == AccessMode.WRITE) {
+			return publicWriteLayers.contains(layer);
+		}
+		return false;
+	}
+
+	/**
+	 * @param authorities
+	 *            Roles of a user
+	 * @return Numbers of the roles that are known to this index
+	 */
+	public BitSet getRoleBits(
+			Collection<? extends GrantedAuthority> authorities) {
+		final BitSet bits = new BitSet();
+		bits.set(ANY_ID);
+		if (authorities != null) {
+			for (GrantedAuthority authority : authorities) {
+				final Integer id = roleIds.get(authority.getAuthority());
+				if (id != null) {
+					bits.set(id);
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @param roleBits
+	 *            Result of {@link #getRoleBits(Collection)}
+	 * @param layer
+	 *            Name of layer within the instance's workspace
+	 * @param mode
+	 * @return True if one of the roles is granted access, false if none is or
+	 *         null if Drupal does not grant the mode on layer at all
+	 */
+	public Boolean canAccess(BitSet roleBits, String layer, AccessMode mode) {
+		final BitSet granted;
+		if (mode == AccessMode.READ) {
+			granted = readLayers.get(layer);
+		} else if (mode == AccessMode.WRITE) {
+			granted = writeLayers.get(layer);
+		} else {
+			return null;
+		}
+		if (granted == null) {
+			return null;
+		}
+		return granted.intersects(roleBits);
+	}
+}
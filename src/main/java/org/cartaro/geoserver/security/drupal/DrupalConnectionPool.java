@@ -0,0 +1,327 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Bounded pool of connections to a single Drupal database. Connections are
+ * validated when borrowed and closed once they have been idle for longer than
+ * configured. While the database is unreachable, connections are refused
+ * immediately and the database is probed in the background.
+ */
+public class DrupalConnectionPool {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	/**
+	 * Consecutive failures to connect after which the database is considered
+	 * down
+	 */
+	private static final int FAILURE_THRESHOLD = 2;
+
+	/**
+	 * Milliseconds between probes of a database that is down. Doubles with
+	 * every failed probe up to the maximum.
+	 */
+	private static final long INITIAL_PROBE_DELAY = 1000;
+	private static final long MAX_PROBE_DELAY = 60000;
+
+	private final DrupalSecurityServiceConfig drupalConfig;
+
+	private final CircuitBreaker circuitBreaker;
+
+	/**
+	 * Limits the number of connections that are borrowed at the same time.
+	 * New connections are only opened when there is no idle one, thus this
+	 * also bounds the number of open connections.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Connections that are ready to be borrowed. Most recently used
+	 * connections are at the head so that the tail ages and gets evicted.
+	 */
+	private final LinkedList<PooledConnection> idleConnections = new LinkedList<PooledConnection>();
+
+	private volatile boolean closed = false;
+
+	public DrupalConnectionPool(DrupalSecurityServiceConfig drupalConfig) {
+		this.drupalConfig = drupalConfig;
+		this.permits = new Semaphore(drupalConfig.getConnectionPoolSize(), true);
+		this.circuitBreaker = new CircuitBreaker(drupalConfig.getName(),
+				FAILURE_THRESHOLD, INITIAL_PROBE_DELAY, MAX_PROBE_DELAY);
+	}
+
+	/**
+	 * Hands out a validated connection which must be given back using
+	 * {@link #release(PooledConnection)}.
+	 *
+	 * @return Open connection to the Drupal database
+	 * @throws SQLException
+	 *             When no connection could be established, none became
+	 *             available in time or the database is known to be down
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool of "
+					+ drupalConfig.getName() + " has been closed.");
+		}
+		// Don't wait for timeouts of a database that is down
+		checkCircuit();
+		final int maxWait = drupalConfig.getConnectionPoolMaxWait();
+		try {
+			if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("No connection to database of "
+						+ drupalConfig.getName() + " became available within "
+						+ maxWait + "ms.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for connection to database of "
+					+ drupalConfig.getName());
+		}
+
+		try {
+			PooledConnection connection;
+			while ((connection = pollIdleConnection()) != null) {
+				if (isValid(connection.getConnection())) {
+					return connection;
+				}
+				LOGGER.fine("Discarding stale connection to database of "
+						+ drupalConfig.getName());
+				closeQuietly(connection);
+			}
+			return new PooledConnection(openConnection());
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes back a connection that has been handed out by {@link #borrow()}.
+	 *
+	 * @param connection
+	 */
+	public void release(PooledConnection connection) {
+		try {
+			if (closed || connection.isClosed()) {
+				closeQuietly(connection);
+				return;
+			}
+			connection.idleSince = System.currentTimeMillis();
+			synchronized (idleConnections) {
+				idleConnections.addFirst(connection);
+			}
+		} catch (SQLException e) {
+			closeQuietly(connection);
+		} finally {
+			permits.release();
+		}
+		closeAll(evictIdleConnections());
+	}
+
+	/**
+	 * Closes all idle connections. Connections that are still borrowed are
+	 * closed as soon as they are released.
+	 */
+	public void close() {
+		closed = true;
+		final List<PooledConnection> connections;
+		synchronized (idleConnections) {
+			connections = new ArrayList<PooledConnection>(idleConnections);
+			idleConnections.clear();
+		}
+		closeAll(connections);
+	}
+
+	/**
+	 * @return State of the connection to the database
+	 */
+	public CircuitBreaker.State getState() {
+		return circuitBreaker.getState();
+	}
+
+	/**
+	 * Opens a new connection that is not managed by the pool. Failures are
+	 * tracked so that further attempts fail fast while the database is down.
+	 *
+	 * @return New connection
+	 * @throws SQLException
+	 */
+	public Connection openConnection() throws SQLException {
+		checkCircuit();
+		try {
+			final Connection connection = createConnection();
+			circuitBreaker.recordSuccess();
+			return connection;
+		} catch (SQLException e) {
+			if (circuitBreaker.recordFailure()) {
+				scheduleProbe();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Fails while the database is down. Schedules a probe if none is pending,
+	 * which happens if scheduling the last one was rejected.
+	 *
+	 * @throws SQLException
+	 */
+	private void checkCircuit() throws SQLException {
+		try {
+			circuitBreaker.check();
+		} catch (SQLException e) {
+			if (!closed && circuitBreaker.claimProbe()) {
+				scheduleProbe();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Tries to connect to a database that is down once its back-off elapsed.
+	 * A successful probe's connection is kept as idle connection if a permit
+	 * is free.
+	 */
+	private void scheduleProbe() {
+		final long delay = circuitBreaker.getBackoff();
+		LOGGER.fine("Probing database of " + drupalConfig.getName() + " in "
+				+ delay + "ms.");
+		try {
+			DrupalScheduler.getExecutor().schedule(new Runnable() {
+				public void run() {
+					if (closed || !circuitBreaker.startProbe()) {
+						return;
+					}
+					try {
+						final PooledConnection connection = new PooledConnection(
+								createConnection());
+						circuitBreaker.recordSuccess();
+						// Keep the connection only within the pool's bound
+						if (closed || !permits.tryAcquire()) {
+							closeQuietly(connection);
+							return;
+						}
+						release(connection);
+					} catch (SQLException e) {
+						LOGGER.log(Level.FINE, "Database of "
+								+ drupalConfig.getName() + " is still down", e);
+						if (circuitBreaker.recordFailure()) {
+							scheduleProbe();
+						}
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Scheduler is shutting down, let the next request schedule the
+			// probe again while the circuit stays open
+			circuitBreaker.cancelProbe();
+		}
+	}
+
+	protected Connection createConnection() throws SQLException {
+		String connectionURL = "jdbc:postgresql://"
+				+ drupalConfig.getDatabaseHost() + ":"
+				+ drupalConfig.getDatabasePort() + "/"
+				+ drupalConfig.getDatabaseName();
+		Properties properties = new Properties();
+		properties.setProperty("user", drupalConfig.getDatabaseUser());
+		properties.setProperty("password", drupalConfig.getDatabasePassword());
+		return DriverManager.getConnection(connectionURL, properties);
+	}
+
+	/**
+	 * @return Most recently used idle connection or null if there is none
+	 */
+	private PooledConnection pollIdleConnection() {
+		closeAll(evictIdleConnections());
+		synchronized (idleConnections) {
+			return idleConnections.pollFirst();
+		}
+	}
+
+	/**
+	 * Removes connections from the pool that have not been used for longer
+	 * than the configured idle timeout.
+	 *
+	 * @return Evicted connections which still need to be closed
+	 */
+	private List<PooledConnection> evictIdleConnections() {
+		final long evictBefore = System.currentTimeMillis()
+				- drupalConfig.getConnectionPoolIdleTimeout();
+		final List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		synchronized (idleConnections) {
+			Iterator<PooledConnection> oldestFirst = idleConnections
+					.descendingIterator();
+			while (oldestFirst.hasNext()) {
+				PooledConnection idle = oldestFirst.next();
+				if (idle.idleSince >= evictBefore) {
+					break;
+				}
+				oldestFirst.remove();
+				evicted.add(idle);
+			}
+		}
+		return evicted;
+	}
+
+	private boolean isValid(Connection connection) {
+		final int timeout = drupalConfig.getConnectionValidationTimeout();
+		try {
+			return connection.isValid(timeout);
+		} catch (AbstractMethodError e) {
+			// Pre JDBC 4 drivers don't know isValid
+			return isValidByQuery(connection, timeout);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private boolean isValidByQuery(Connection connection, int timeout) {
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.setQueryTimeout(timeout);
+				statement.execute("select 1");
+				return true;
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void closeAll(List<PooledConnection> connections) {
+		for (PooledConnection connection : connections) {
+			closeQuietly(connection);
+		}
+	}
+
+	private void closeQuietly(PooledConnection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Could not close database connection of "
+					+ drupalConfig.getName(), e);
+		}
+	}
+}
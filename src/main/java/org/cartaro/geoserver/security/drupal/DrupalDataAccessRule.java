@@ -0,0 +1,36 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.Set;
+
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRule;
+
+/**
+ * Access rule derived from Drupal permissions. Hands out a role name set that
+ * is shared with other rules and the snapshot. The superclass keeps an equal
+ * copy so that its value, equality and string form see the same roles. The
+ * roles cannot be modified since permissions are managed in Drupal.
+ */
+public class DrupalDataAccessRule extends DataAccessRule {
+	private final Set<String> sharedRoles;
+
+	/**
+	 * @param root
+	 *            Workspace
+	 * @param layer
+	 * @param accessMode
+	 * @param roles
+	 *            Unmodifiable role names, see
+	 *            {@link RoleInterner#getRoleNames(Set)}
+	 */
+	public DrupalDataAccessRule(String root, String layer,
+			AccessMode accessMode, Set<String> roles) {
+		super(root, layer, accessMode, roles);
+		this.sharedRoles = roles;
+	}
+
+	@Override
+	public Set<String> getRoles() {
+		return sharedRoles;
+	}
+}
@@ -0,0 +1,14 @@
+package org.cartaro.geoserver.security.drupal;
+
+/**
+ * Gets informed about changes of permission related data in a Drupal
+ * database.
+ */
+public interface DrupalDataChangeListener {
+	/**
+	 * @param table
+	 *            Name of the changed table or null if any data might have
+	 *            changed
+	 */
+	void drupalDataChanged(String table);
+}
@@ -1,12 +1,13 @@
 package org.cartaro.geoserver.security.drupal;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Timer;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,15 +20,40 @@ import org.geotools.util.logging.Logging;
 public class DrupalDatabaseConnector {
 	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
 	
-	private Connection connection;
+	/**
+	 * Milliseconds the installation state of Drupal is cached before it gets
+	 * refreshed in the background.
+	 */
+	private static final long INSTALL_STATE_TIME_TO_LIVE = 5000;
+	
+	private final DrupalConnectionPool pool;
+	
+	/**
+	 * Connection borrowed by the current thread between {@link #connect()} and
+	 * the matching {@link #disconnect()}.
+	 */
+	private final ThreadLocal<Lease> lease = new ThreadLocal<Lease>();
 	
 	private DrupalSecurityServiceConfig drupalConfig;
-
-
-	private Timer timer;
+	
+	/**
+	 * Cached result of {@link #isDrupalCurrentlyInstalling()}, null until
+	 * queried first.
+	 */
+	private volatile Boolean drupalCurrentlyInstalling;
+	
+	private volatile long installStateCheckedAt;
+	
+	private final AtomicBoolean installStateRefreshing = new AtomicBoolean(false);
+	
+	/**
+	 * Shared prefixed roles and role name sets of this instance
+	 */
+	private final RoleInterner interner = new RoleInterner();
 
 	/**
-	 * Binds an instance to a Drupal database and repeatedly retries if connection fails.
+	 * Binds an instance to a Drupal database. Connections are opened lazily
+	 * and refused immediately while the database is known to be down.
 	 * @param drupalConfig
 	 * @throws ClassNotFoundException
 	 */
@@ -36,86 +62,204 @@ public class DrupalDatabaseConnector {
 		drupalConfig = newDrupalConfig;
 		
 		Class.forName("org.postgresql.Driver");
-		/*
-		try{
-			this.connection = this.accquireConnection(drupalConfig);
-		} catch (SQLException e){
-			// Try reconnecting of connection failed
-			LOGGER.log(Level.WARNING, "Cannot connect to database of configuration "+drupalConfig.getName()+". Retrying in 5000ms interval.", e);
-			timer = new Timer();
-			timer.scheduleAtFixedRate(new TimerTask() {
-				final int max_retires = 5;
-				int retry_counter = 0;
-				
-				@Override
-				public void run() {
-					try {
-						DrupalDatabaseConnector.this.connection = DrupalDatabaseConnector.this.accquireConnection(drupalConfig);
-						timer.cancel();
-						timer = null;
-						LOGGER.log(Level.INFO, "Finally connected to database of configuration "+drupalConfig.getName() +
-									" (retry "+retry_counter+" of "+max_retires+")");
-					} catch (SQLException e) {
-						LOGGER.log(Level.WARNING, "Cannot connect to database of configuration "+drupalConfig.getName(), e);
-						retry_counter++;
-						if (retry_counter >= max_retires) {
-							LOGGER.log(Level.WARNING, "Retired " + retry_counter + " times to establish the connection to the database "
-									+ drupalConfig.getName() + " without success. aborting now.");
-							timer.cancel();
-							timer = null;
-						}
-					}
-				}
-			}, 5000, 5000);
-		}
-		*/
+		pool = new DrupalConnectionPool(drupalConfig);
 	}
 	
+	/**
+	 * @return New connection that is not managed by the pool. Callers must
+	 *         close it.
+	 * @throws SQLException
+	 */
+	Connection openDedicatedConnection() throws SQLException {
+		return pool.openConnection();
+	}
+
+	/**
+	 * Borrows a connection from the pool for the current thread. Calls may be
+	 * nested as long as each is matched by a call to {@link #disconnect()}.
+	 * @throws SQLException
+	 */
 	public void connect() throws SQLException {
-		if (this.connection == null) {
-			// TODO: implement retires and logging
-			this.connection = this.accquireConnection(drupalConfig);
+		Lease current = lease.get();
+		if (current == null) {
+			current = new Lease(pool.borrow());
+			lease.set(current);
 		}
+		current.depth++;
 	}
 	
+	/**
+	 * Like {@link #connect()}, but all queries until the matching
+	 * {@link #disconnect()} run in one read-only transaction with isolation
+	 * level REPEATABLE READ. They thus see the same state of the database even
+	 * if it is changed meanwhile.
+	 * @throws SQLException
+	 */
+	public void connectReadOnly() throws SQLException {
+		connect();
+		final Lease current = lease.get();
+		if (current.transactionDepth > 0) {
+			// Already within such a transaction
+			return;
+		}
+		final Connection connection = current.connection.getConnection();
+		current.transactionDepth = current.depth;
+		try {
+			current.autoCommit = connection.getAutoCommit();
+			current.readOnly = connection.isReadOnly();
+			current.isolation = connection.getTransactionIsolation();
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			connection.setReadOnly(true);
+			connection.setAutoCommit(false);
+		} catch (SQLException e) {
+			disconnect();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the current thread's connection to the pool once the outermost
+	 * {@link #connect()} is matched. Ends the transaction started by
+	 * {@link #connectReadOnly()} once that is matched.
+	 */
 	public void disconnect() {
-		if(this.connection!=null){
+		Lease current = lease.get();
+		if (current == null) {
+			return;
+		}
+		if (current.depth == current.transactionDepth) {
+			endTransaction(current);
+		}
+		if (--current.depth == 0) {
+			lease.remove();
+			pool.release(current.connection);
+		}
+	}
+	
+	/**
+	 * Restores the settings the connection had before
+	 * {@link #connectReadOnly()}. Closes it if that fails so that it is not
+	 * reused.
+	 */
+	private void endTransaction(Lease current) {
+		current.transactionDepth = 0;
+		final Connection connection = current.connection.getConnection();
+		try {
+			// Nothing has been written
+			connection.rollback();
+			connection.setAutoCommit(current.autoCommit);
+			connection.setReadOnly(current.readOnly);
+			connection.setTransactionIsolation(current.isolation);
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Discarding connection to database of "
+					+ drupalConfig.getName() + " after failed transaction", e);
 			try {
-				this.connection.close();
-				this.connection = null;
-			} catch (SQLException e) {
-				LOGGER.log(Level.WARNING, "Could not close database connection of "+drupalConfig.getDrupalInstancePrefix(), e);
+				current.connection.close();
+			} catch (SQLException closeFailure) {
+				LOGGER.log(Level.FINE, "Could not close connection", closeFailure);
 			}
 		}
 	}
 		
 	/**
-	 * Closes database connection if any is still open.
+	 * Closes all pooled database connections.
 	 * Subsequent simply won't have any effect.
 	 */
 	public void close(){
-		if(timer!=null){
-			timer.cancel();
-			timer = null;
-			LOGGER.log(Level.WARNING, "Don't try failing connection attempts to database of configuration "+drupalConfig.getDrupalInstancePrefix()+" any longer.");
+		pool.close();
+	}
+
+	/**
+	 * @return Connection borrowed by the current thread
+	 * @throws SQLException When {@link #connect()} has not been called
+	 */
+	private PooledConnection getConnection() throws SQLException {
+		Lease current = lease.get();
+		if (current == null) {
+			throw new SQLException("Not connected to database of "
+					+ drupalConfig.getName());
 		}
-		this.disconnect();
+		return current.connection;
 	}
 
-	protected Connection accquireConnection(
-			DrupalSecurityServiceConfig drupalConfig) throws SQLException {
-		String connectionURL = "jdbc:postgresql://"
-				+ drupalConfig.getDatabaseHost() + ":"
-				+ drupalConfig.getDatabasePort() + "/"
-				+ drupalConfig.getDatabaseName() + "?user="
-				+ drupalConfig.getDatabaseUser() + "&password="
-				+ drupalConfig.getDatabasePassword();
-		return DriverManager.getConnection(connectionURL);
+	/**
+	 * Runs a query using a cached prepared statement of the current thread's
+	 * connection. Connects for the duration of the query unless already
+	 * connected. The result set is closed after the handler returns.
+	 * @param query SQL with a placeholder for each parameter
+	 * @param handler Extracts the return value from the result set
+	 * @param parameters Values for the placeholders in order
+	 * @return Value returned by handler
+	 * @throws SQLException
+	 */
+	public <T> T query(String query, ResultSetHandler<T> handler,
+			Object... parameters) throws SQLException {
+		connect();
+		try {
+			final PooledConnection connection = getConnection();
+			final PreparedStatement statement = connection.prepare(query);
+			try {
+				for (int i = 0; i < parameters.length; i++) {
+					statement.setObject(i + 1, parameters[i]);
+				}
+				final ResultSet resultSet = statement.executeQuery();
+				try {
+					return handler.handle(resultSet);
+				} finally {
+					resultSet.close();
+				}
+			} catch (SQLException e) {
+				// Don't reuse a statement that might be broken
+				connection.discard(query);
+				throw e;
+			}
+		} finally {
+			disconnect();
+		}
 	}
 
-	public ResultSet getResultSet(String query) throws SQLException {
-		Statement statement = this.connection.createStatement();
-		return statement.executeQuery(query);
+	/**
+	 * Runs a query whose result is fetched in chunks instead of being read
+	 * into memory at once. PostgreSQL's driver streams results only within
+	 * a transaction, thus autocommit is disabled for the duration of the
+	 * query unless the query runs within a transaction already.
+	 * @param query SQL without parameters
+	 * @param fetchSize Number of rows fetched per round trip
+	 * @param handler Extracts the return value from the result set
+	 * @return Value returned by handler
+	 * @throws SQLException
+	 */
+	public <T> T stream(String query, int fetchSize, ResultSetHandler<T> handler)
+			throws SQLException {
+		connect();
+		try {
+			final Connection connection = getConnection().getConnection();
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				final Statement statement = connection.createStatement();
+				try {
+					statement.setFetchSize(fetchSize);
+					final ResultSet resultSet = statement.executeQuery(query);
+					try {
+						return handler.handle(resultSet);
+					} finally {
+						resultSet.close();
+					}
+				} finally {
+					statement.close();
+				}
+			} finally {
+				// Leave an enclosing transaction open
+				if (autoCommit) {
+					// Nothing has been written
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+			}
+		} finally {
+			disconnect();
+		}
 	}
 
 	public GeoServerRole stripInstancePrefix(GeoServerRole role) {
@@ -124,15 +268,36 @@ public class DrupalDatabaseConnector {
 		return new GeoServerRole(unprefixed);
 	}
 
-	public ResultSet getResultSet(String query, String parameter)
-			throws SQLException {
-		PreparedStatement ps = this.connection.prepareStatement(query);
-		ps.setString(1, parameter);
-		return ps.executeQuery();
+	/**
+	 * @param role
+	 * @return Shared prefixed role that must not be modified
+	 */
+	public GeoServerRole addInstancePrefix(GeoServerRole role) {
+		return getPrefixedRole(role.getAuthority());
 	}
 
-	public GeoServerRole addInstancePrefix(GeoServerRole role) {
-		return new GeoServerRole(addInstancePrefix(role.getAuthority()));
+	/**
+	 * @param drupalRole Role name as used by Drupal
+	 * @return Shared prefixed role that must not be modified
+	 */
+	public GeoServerRole getPrefixedRole(String drupalRole) {
+		return interner.getRole(addInstancePrefix(drupalRole));
+	}
+
+	/**
+	 * @param roleNames Prefixed role names that are not modified afterwards
+	 * @return Shared unmodifiable set equal to roleNames
+	 */
+	public Set<String> internRoleNames(Set<String> roleNames) {
+		return interner.getRoleNames(roleNames);
+	}
+
+	/**
+	 * @param roles Prefixed roles of a user that are not modified afterwards
+	 * @return Shared unmodifiable set equal to roles
+	 */
+	public SortedSet<GeoServerRole> internRoles(SortedSet<GeoServerRole> roles) {
+		return interner.getRoles(roles);
 	}
 
 	/**
@@ -165,14 +330,63 @@ public class DrupalDatabaseConnector {
 	}
 	
 	/**
+	 * Installation is rare and short-lived, thus the state is cached. Stale
+	 * values are served while a refresh runs in the background.
 	 * @return TRUE whilst the bound Drupal instance is still installing its core (initial installation)
 	 * @throws SQLException
 	 */
 	public boolean isDrupalCurrentlyInstalling() throws SQLException{
+		final Boolean installing = drupalCurrentlyInstalling;
+		if (installing == null) {
+			return refreshInstallState();
+		}
+		if (System.currentTimeMillis() - installStateCheckedAt > INSTALL_STATE_TIME_TO_LIVE
+				&& installStateRefreshing.compareAndSet(false, true)) {
+			DrupalScheduler.execute(new Runnable() {
+				public void run() {
+					try {
+						refreshInstallState();
+					} catch (SQLException e) {
+						LOGGER.log(Level.WARNING, "Could not refresh installation state of "
+								+ drupalConfig.getName(), e);
+					} finally {
+						installStateRefreshing.set(false);
+					}
+				}
+			});
+		}
+		return installing;
+	}
+	
+	private boolean refreshInstallState() throws SQLException {
 		// Convert using convert_from to get consistent behavior in Postgres 8 and 9
-		ResultSet drupalCurrentlyInstallingSet = this.getResultSet("select convert_from(value, 'UTF-8')='s:23:\"install_profile_modules\";' as install_profile_modules " +
-				"from variable where name='install_task'");
-		boolean drupalCurrentlyInstalling = drupalCurrentlyInstallingSet.next() && drupalCurrentlyInstallingSet.getBoolean("install_profile_modules");
-		return drupalCurrentlyInstalling;
+		final boolean installing = query("select convert_from(value, 'UTF-8')='s:23:\"install_profile_modules\";' as install_profile_modules " +
+				"from variable where name='install_task'", new ResultSetHandler<Boolean>() {
+			public Boolean handle(ResultSet drupalCurrentlyInstallingSet) throws SQLException {
+				return drupalCurrentlyInstallingSet.next() && drupalCurrentlyInstallingSet.getBoolean("install_profile_modules");
+			}
+		});
+		installStateCheckedAt = System.currentTimeMillis();
+		drupalCurrentlyInstalling = installing;
+		return installing;
+	}
+	
+	private static class Lease {
+		private final PooledConnection connection;
+		private int depth = 0;
+		
+		/**
+		 * Depth of the {@link DrupalDatabaseConnector#connectReadOnly()} call
+		 * that started a transaction or 0 if there is none. Settings of the
+		 * connection before that call follow.
+		 */
+		private int transactionDepth = 0;
+		private boolean autoCommit;
+		private boolean readOnly;
+		private int isolation;
+		
+		private Lease(PooledConnection connection) {
+			this.connection = connection;
+		}
 	}
 }
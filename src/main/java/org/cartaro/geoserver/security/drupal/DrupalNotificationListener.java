@@ -0,0 +1,193 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Holds a dedicated connection to a Drupal database that listens for
+ * notifications sent by the triggers in notification_triggers.sql. Each
+ * notification carries the name of the changed table.
+ * 
+ * The PostgreSQL driver is accessed by reflection since it is provided by
+ * GeoServer at runtime only.
+ */
+public class DrupalNotificationListener implements Runnable {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	/**
+	 * Channel the triggers notify
+	 */
+	public static final String CHANNEL = "geoserver_sec_drupal";
+
+	/**
+	 * Milliseconds to wait for notifications at once
+	 */
+	private static final int POLL_INTERVAL = 500;
+
+	/**
+	 * Milliseconds to wait before reconnecting after the connection failed
+	 */
+	private static final long RECONNECT_DELAY = 5000;
+
+	private final DrupalDatabaseConnector connector;
+	private final DrupalDataChangeListener listener;
+	private final String name;
+
+	private volatile boolean running;
+	private volatile boolean listening;
+	private Thread thread;
+
+	/**
+	 * @param name
+	 *            Name of Drupal instance
+	 * @param connector
+	 *            Connector to open the listening connection with
+	 * @param listener
+	 *            Receives changes
+	 */
+	public DrupalNotificationListener(String name,
+			DrupalDatabaseConnector connector, DrupalDataChangeListener listener) {
+		this.name = name;
+		this.connector = connector;
+		this.listener = listener;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "geoserver-sec-drupal-listener-" + name);
+		// Must not keep the servlet container from shutting down
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * @return True while notifications are received. Changes may be missed
+	 *         otherwise.
+	 */
+	public boolean isListening() {
+		return listening;
+	}
+
+	public void run() {
+		while (running) {
+			Connection connection = null;
+			try {
+				connection = connector.openDedicatedConnection();
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute("LISTEN " + CHANNEL);
+				} finally {
+					statement.close();
+				}
+				listening = true;
+				LOGGER.info("Listening for changes in Drupal instance " + name);
+				// Changes may have been missed while not listening
+				listener.drupalDataChanged(null);
+				while (running) {
+					for (String table : receive(connection)) {
+						LOGGER.fine("Drupal instance " + name + " changed "
+								+ table);
+						listener.drupalDataChanged(table);
+					}
+				}
+			} catch (SQLException e) {
+				LOGGER.log(Level.WARNING,
+						"Lost notifications of Drupal instance " + name, e);
+			} catch (InterruptedException e) {
+				// Stopped
+			} finally {
+				listening = false;
+				if (connection != null) {
+					try {
+						connection.close();
+					} catch (SQLException e) {
+						LOGGER.log(Level.FINE, e.getMessage(), e);
+					}
+				}
+			}
+			if (running) {
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for notifications.
+	 * 
+	 * @param connection
+	 * @return Names of tables that changed
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	private String[] receive(Connection connection) throws SQLException,
+			InterruptedException {
+		Object[] notifications;
+		try {
+			final Class<?> pgConnection = Class
+					.forName("org.postgresql.PGConnection");
+			Method getNotifications;
+			try {
+				// Blocks until notifications arrive (driver 42.2 and later)
+				getNotifications = pgConnection.getMethod("getNotifications",
+						int.class);
+				notifications = (Object[]) getNotifications.invoke(
+						connection, POLL_INTERVAL);
+			} catch (NoSuchMethodException e) {
+				// Older drivers only receive notifications along with
+				// results of a query
+				Thread.sleep(POLL_INTERVAL);
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute("select 1");
+				} finally {
+					statement.close();
+				}
+				getNotifications = pgConnection.getMethod("getNotifications");
+				notifications = (Object[]) getNotifications.invoke(connection);
+			}
+			if (notifications == null) {
+				return new String[0];
+			}
+			final Method getParameter = Class.forName(
+					"org.postgresql.PGNotification").getMethod("getParameter");
+			final String[] tables = new String[notifications.length];
+			for (int i = 0; i < notifications.length; i++) {
+				tables[i] = (String) getParameter.invoke(notifications[i]);
+			}
+			return tables;
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("Cannot receive notifications", e.getCause());
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("PostgreSQL driver lacks notifications", e);
+		} catch (NoSuchMethodException e) {
+			throw new SQLException("PostgreSQL driver lacks notifications", e);
+		} catch (IllegalAccessException e) {
+			throw new SQLException("PostgreSQL driver lacks notifications", e);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reimplementation of Drupal 7's SHA-512 based password hashing. Each thread
+ * uses its own instance which reuses digest and buffers, thus stretching does
+ * not allocate any memory per iteration.
+ *
+ * @see http://api.drupal.org/api/drupal/includes!password.inc/7
+ */
+public class DrupalPasswordHasher {
+	/**
+	 * @see http://api.drupal.org/api/drupal/includes!password.inc/function/
+	 *      _password_itoa64/7
+	 */
+	private static final String ITOA64 = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private static final int DRUPAL_HASH_LENGTH = 55;
+
+	/**
+	 * Length of settings (algorithm, iteration count and salt) at the start of
+	 * a hash
+	 */
+	private static final int SETTING_LENGTH = 12;
+
+	private static final int SHA512_LENGTH = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<DrupalPasswordHasher> HASHERS = new ThreadLocal<DrupalPasswordHasher>() {
+		@Override
+		protected DrupalPasswordHasher initialValue() {
+			return new DrupalPasswordHasher();
+		}
+	};
+
+	private final MessageDigest sha512;
+
+	private final byte[] hash = new byte[SHA512_LENGTH];
+
+	private DrupalPasswordHasher() {
+		try {
+			sha512 = MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Hasher bound to the current thread
+	 */
+	public static DrupalPasswordHasher get() {
+		return HASHERS.get();
+	}
+
+	/**
+	 * @see http://api.drupal.org/api/drupal/includes!password.inc/function/
+	 *      _password_crypt/7
+	 * @param password
+	 *            Plain text password
+	 * @param setting
+	 *            Stored hash or at least its settings part
+	 * @return Hash of password using the salt and iteration count of setting
+	 */
+	public String crypt(String password, String setting) {
+		setting = setting.substring(0, SETTING_LENGTH);
+
+		int countLog2 = ITOA64.indexOf(setting.charAt(3));
+		int count = 1 << countLog2;
+		byte[] passwordBytes = password.getBytes(UTF8);
+
+		try {
+			sha512.reset();
+			sha512.update(setting.substring(4, SETTING_LENGTH).getBytes(UTF8));
+			sha512.update(passwordBytes);
+			sha512.digest(hash, 0, SHA512_LENGTH);
+			do {
+				sha512.update(hash, 0, SHA512_LENGTH);
+				sha512.update(passwordBytes);
+				sha512.digest(hash, 0, SHA512_LENGTH);
+				count = count - 1;
+			} while (count > 0);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		String output = setting + base64Encode(hash, SHA512_LENGTH);
+		return output.substring(0, DRUPAL_HASH_LENGTH);
+	}
+
+	/**
+	 * @see http://api.drupal.org/api/drupal/includes!password.inc/function/
+	 *      _password_base64_encode/7
+	 * @param hash
+	 * @param count
+	 *            Number of bytes of hash to encode
+	 * @return
+	 */
+	public static String base64Encode(final byte[] hash, final int count) {
+		final StringBuilder output = new StringBuilder((count * 4 + 2) / 3);
+		int i = 0;
+		do {
+			// Mask to get PHP's unsigned character values
+			int value = hash[i++] & 0xff;
+			output.append(ITOA64.charAt(value & 0x3f));
+			if (i < count) {
+				value |= (hash[i] & 0xff) << 8;
+			}
+			output.append(ITOA64.charAt((value >> 6) & 0x3f));
+			if (i++ >= count) {
+				break;
+			}
+			if (i < count) {
+				value |= (hash[i] & 0xff) << 16;
+			}
+			output.append(ITOA64.charAt((value >> 12) & 0x3f));
+			if (i++ >= count) {
+				break;
+			}
+			output.append(ITOA64.charAt((value >> 18) & 0x3f));
+		} while (i < count);
+		return output.toString();
+	}
+}
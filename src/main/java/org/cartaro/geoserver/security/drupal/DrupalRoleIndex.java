@@ -0,0 +1,86 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.geoserver.security.impl.GeoServerRole;
+
+/**
+ * Roles of all Drupal instances by name. Built once per combination of the
+ * instances' snapshots so that role lookups neither query Drupal nor scan
+ * all roles.
+ */
+public class DrupalRoleIndex {
+	private final Map<String, DrupalSecuritySnapshot> snapshots;
+	private final Map<String, GeoServerRole> rolesByAuthority;
+	private final SortedSet<GeoServerRole> roles;
+	private final Map<String, String> parentMappings;
+
+	/**
+	 * @param snapshots
+	 *            Current snapshot by name of Drupal instance
+	 */
+	public DrupalRoleIndex(Map<String, DrupalSecuritySnapshot> snapshots) {
+		this.snapshots = Collections
+				.unmodifiableMap(new HashMap<String, DrupalSecuritySnapshot>(
+						snapshots));
+		final TreeSet<GeoServerRole> allRoles = new TreeSet<GeoServerRole>();
+		for (DrupalSecuritySnapshot snapshot : snapshots.values()) {
+			allRoles.addAll(snapshot.getRoles());
+		}
+		final HashMap<String, GeoServerRole> byAuthority = new HashMap<String, GeoServerRole>();
+		// Drupal does not support nested roles
+		final HashMap<String, String> parents = new HashMap<String, String>();
+		for (GeoServerRole role : allRoles) {
+			byAuthority.put(role.getAuthority(), role);
+			parents.put(role.getAuthority(), null);
+		}
+		roles = Collections.unmodifiableSortedSet(allRoles);
+		rolesByAuthority = Collections.unmodifiableMap(byAuthority);
+		parentMappings = Collections.unmodifiableMap(parents);
+	}
+
+	/**
+	 * @param instance
+	 *            Name of Drupal instance
+	 * @return Snapshot of instance this index was built from or null if the
+	 *         instance is not part of it
+	 */
+	public DrupalSecuritySnapshot getSnapshot(String instance) {
+		return snapshots.get(instance);
+	}
+
+	/**
+	 * @return Number of Drupal instances this index was built from
+	 */
+	public int getInstanceCount() {
+		return snapshots.size();
+	}
+
+	/**
+	 * @param authority
+	 *            Prefixed role name
+	 * @return Shared role that must not be modified or null if no instance
+	 *         knows the role
+	 */
+	public GeoServerRole getRole(String authority) {
+		return rolesByAuthority.get(authority);
+	}
+
+	/**
+	 * @return Roles of all instances
+	 */
+	public SortedSet<GeoServerRole> getRoles() {
+		return roles;
+	}
+
+	/**
+	 * @return Mapping of all roles to null parents
+	 */
+	public Map<String, String> getParentMappings() {
+		return parentMappings;
+	}
+}
@@ -2,7 +2,6 @@ package org.cartaro.geoserver.security.drupal;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -15,12 +14,12 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ConcurrentModificationException;
 
 import org.cartaro.geoserver.security.drupal.filter.DrupalRESTfulDefinitionSource;
-import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.impl.WorkspaceInfoImpl;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.security.AccessMode;
@@ -29,6 +28,7 @@ import org.geoserver.security.GeoServerRoleStore;
 import org.geoserver.security.GeoServerSecurityManager;
 import org.geoserver.security.GeoServerUserGroupService;
 import org.geoserver.security.RESTfulDefinitionSource;
+import org.geoserver.security.SecurityManagerListener;
 import org.geoserver.security.config.SecurityNamedServiceConfig;
 import org.geoserver.security.event.RoleLoadedEvent;
 import org.geoserver.security.event.RoleLoadedListener;
@@ -41,7 +41,8 @@ import org.geotools.util.logging.Logging;
  * Makes roles from Drupal instances available in GeoServer. This implementation
  * does aggregate roles from all Drupal instances.
  */
-public class DrupalRoleService implements GeoServerRoleService {
+public class DrupalRoleService implements GeoServerRoleService,
+		SecurityManagerListener {
 	protected static Logger LOGGER = Logging
 			.getLogger("org.geoserver.security");
 
@@ -50,6 +51,39 @@ public class DrupalRoleService implements GeoServerRoleService {
 	private Set<RoleLoadedListener> listeners = Collections
 			.synchronizedSet(new HashSet<RoleLoadedListener>());
 
+	/**
+	 * User group services bound to Drupal instances. Null until loaded or
+	 * after the security configuration changed.
+	 */
+	private volatile List<DrupalUserGroupService> drupalUserGroupServices;
+
+	/**
+	 * Same services by name, which is also the name of their workspace
+	 */
+	private volatile Map<String, DrupalUserGroupService> drupalUserGroupServicesByName = Collections
+			.emptyMap();
+
+	/**
+	 * Services that were loaded last, kept to stop their background work and
+	 * close their connections once they are replaced
+	 */
+	private List<DrupalUserGroupService> loadedUserGroupServices;
+
+	/**
+	 * Queries all Drupal instances at once
+	 */
+	private final InstanceFanOut fanOut = new InstanceFanOut();
+
+	/**
+	 * Coalesces concurrent rule generation
+	 */
+	private final SingleFlight<WorkspaceLayerIndex, Collection<DataAccessRule>> layerRuleLoads = new SingleFlight<WorkspaceLayerIndex, Collection<DataAccessRule>>();
+
+	/**
+	 * Roles of all instances by name, rebuilt whenever a snapshot changed
+	 */
+	private volatile DrupalRoleIndex roleIndex;
+
 	public void initializeFromConfig(SecurityNamedServiceConfig config) {
 	}
 
@@ -57,6 +91,71 @@ public class DrupalRoleService implements GeoServerRoleService {
 	 * @return All user group services that bind to a Drupal instance.
 	 */
 	private List<DrupalUserGroupService> getDrupalUserGroupServices() {
+		List<DrupalUserGroupService> services = drupalUserGroupServices;
+		if (services == null) {
+			synchronized (this) {
+				services = drupalUserGroupServices;
+				if (services == null) {
+					services = Collections
+							.unmodifiableList(loadDrupalUserGroupServices());
+					fanOut.retain(services);
+					disposeReplaced(services);
+					final HashMap<String, DrupalUserGroupService> byName = new HashMap<String, DrupalUserGroupService>();
+					for (DrupalUserGroupService service : services) {
+						byName.put(service.getName(), service);
+					}
+					drupalUserGroupServicesByName = Collections
+							.unmodifiableMap(byName);
+					drupalUserGroupServices = services;
+				}
+			}
+		}
+		return services;
+	}
+
+	/**
+	 * Stops background work and closes connections of instances that were
+	 * loaded before but are no longer part of the configuration.
+	 *
+	 * @param services
+	 *            Instances that were loaded most recently
+	 */
+	private void disposeReplaced(List<DrupalUserGroupService> services) {
+		if (loadedUserGroupServices != null) {
+			for (DrupalUserGroupService previous : loadedUserGroupServices) {
+				boolean retained = false;
+				for (DrupalUserGroupService service : services) {
+					retained |= service == previous;
+				}
+				if (!retained) {
+					previous.dispose();
+				}
+			}
+		}
+		loadedUserGroupServices = services;
+	}
+
+	/**
+	 * Forgets the user group services so that they get loaded anew from the
+	 * security configuration on next use.
+	 */
+	public void reloadUserGroupServices() {
+		LOGGER.info("Drupal user group services will be reloaded.");
+		drupalUserGroupServices = null;
+	}
+
+	/**
+	 * Called by GeoServer whenever its security configuration changed.
+	 */
+	public void handlePostChanged(GeoServerSecurityManager securityManager) {
+		reloadUserGroupServices();
+	}
+
+	/**
+	 * @return All user group services that bind to a Drupal instance read
+	 *         from the security configuration.
+	 */
+	private List<DrupalUserGroupService> loadDrupalUserGroupServices() {
 		final List<DrupalUserGroupService> userGroupServices = new ArrayList<DrupalUserGroupService>();
 
 		final GeoServerSecurityManager manager = GeoServerExtensions
@@ -145,7 +244,14 @@ public class DrupalRoleService implements GeoServerRoleService {
 	}
 
 	public void setSecurityManager(GeoServerSecurityManager securityManager) {
+		if (this.securityManager != null) {
+			this.securityManager.removeListener(this);
+		}
 		this.securityManager = securityManager;
+		if (securityManager != null) {
+			// Get notified about new or changed Drupal instances
+			securityManager.addListener(this);
+		}
 	}
 
 	public GeoServerSecurityManager getSecurityManager() {
@@ -174,13 +280,19 @@ public class DrupalRoleService implements GeoServerRoleService {
 		return Collections.unmodifiableSortedSet(new TreeSet<String>());
 	}
 
-	public SortedSet<String> getUserNamesForRole(GeoServerRole role)
+	public SortedSet<String> getUserNamesForRole(final GeoServerRole role)
 			throws IOException {
 		TreeSet<String> userNames = new TreeSet<String>();
-		for (DrupalUserGroupService service : getDrupalUserGroupServices()) {
-			// Add all users of instance having the role
-			SortedSet<String> serviceUserNames = service
-					.getUserNamesForRole(role);
+		for (SortedSet<String> serviceUserNames : fanOut.collectAvailable(
+				"getUserNamesForRole " + role.getAuthority(),
+				getDrupalUserGroupServices(),
+				new InstanceFanOut.InstanceCall<SortedSet<String>>() {
+					public SortedSet<String> call(DrupalUserGroupService service)
+							throws IOException {
+						// Add all users of instance having the role
+						return service.getUserNamesForRole(role);
+					}
+				}).values()) {
 			userNames.addAll(serviceUserNames);
 		}
 
@@ -207,34 +319,70 @@ public class DrupalRoleService implements GeoServerRoleService {
 		return Collections.unmodifiableSortedSet(new TreeSet<GeoServerRole>());
 	}
 
-	public SortedSet<GeoServerRole> getRoles() throws IOException {
-		TreeSet<GeoServerRole> foundRoles = new TreeSet<GeoServerRole>();
-		for (DrupalUserGroupService service : getDrupalUserGroupServices()) {
-			SortedSet<GeoServerRole> serviceUserNames = service.getRoles();
-			foundRoles.addAll(serviceUserNames);
+	/**
+	 * @return Roles of all instances by name. Only rebuilt if an instance's
+	 *         snapshot changed since the last call.
+	 * @throws IOException
+	 */
+	private DrupalRoleIndex getRoleIndex() throws IOException {
+		final List<DrupalUserGroupService> services = getDrupalUserGroupServices();
+		DrupalRoleIndex index = roleIndex;
+		if (index != null && isCurrent(index, services)) {
+			return index;
+		}
+		// Roles of instances without any snapshot are missing until one is
+		// loaded rather than failing all role lookups
+		index = new DrupalRoleIndex(fanOut.collectAvailable("getSnapshot",
+				services,
+				new InstanceFanOut.InstanceCall<DrupalSecuritySnapshot>() {
+					public DrupalSecuritySnapshot call(
+							DrupalUserGroupService service) throws IOException {
+						return service.getSnapshot();
+					}
+				}));
+		roleIndex = index;
+		return index;
+	}
+
+	/**
+	 * @param index
+	 * @param services
+	 * @return True if index was built from the snapshots services hold now.
+	 *         Instances left out of index must still lack a snapshot.
+	 */
+	private static boolean isCurrent(DrupalRoleIndex index,
+			List<DrupalUserGroupService> services) {
+		int indexed = 0;
+		for (DrupalUserGroupService service : services) {
+			final DrupalSecuritySnapshot snapshot = index.getSnapshot(service
+					.getName());
+			if (service.getLoadedSnapshot() != snapshot) {
+				return false;
+			}
+			if (snapshot != null) {
+				indexed++;
+			}
 		}
-		return Collections.unmodifiableSortedSet(foundRoles);
+		return indexed == index.getInstanceCount();
+	}
+
+	public SortedSet<GeoServerRole> getRoles() throws IOException {
+		return getRoleIndex().getRoles();
 	}
 
 	/**
 	 * @return Mapping to nulls since Drupal does not support nested roles
 	 */
 	public Map<String, String> getParentMappings() throws IOException {
-		HashMap<String, String> mapping = new HashMap<String, String>();
-		for (GeoServerRole role : getRoles()) {
-			mapping.put(role.getAuthority(), null);
-		}
-		return Collections.unmodifiableMap(mapping);
+		return getRoleIndex().getParentMappings();
 	}
 
 	public GeoServerRole createRoleObject(String role) throws IOException {
-		SortedSet<GeoServerRole> allRoles = getRoles();
-		for (GeoServerRole existingRole : allRoles) {
-			if (existingRole.getAuthority().equals(role)) {
-				return new GeoServerRole(role);
-			}
+		if (getRoleIndex().getRole(role) == null) {
+			return null;
 		}
-		return null;
+		// Callers may personalize the role, thus it must not be shared
+		return new GeoServerRole(role);
 	}
 
 	public GeoServerRole getParentRole(GeoServerRole role) throws IOException {
@@ -278,51 +426,117 @@ public class DrupalRoleService implements GeoServerRoleService {
 	}
 
 	public int getRoleCount() throws IOException {
-		return getRoles().size();
+		return getRoleIndex().getRoles().size();
 	}
 
+	/**
+	 * @param layerIndex
+	 *            Layers of the catalog by workspace
+	 * @return Administration and layer rules of all Drupal instances
+	 * @throws IOException
+	 */
 	public Collection<? extends DataAccessRule> getLayerAccessRules(
-			Catalog rawCatalog) throws IOException {
-		LOGGER.info("Injected: loading layer rules from "
-				+ getDrupalUserGroupServices().size() + " services");
+			final WorkspaceLayerIndex layerIndex) throws IOException {
+		// Callers arriving while rules are generated share the result
+		return layerRuleLoads.execute(layerIndex,
+				new Callable<Collection<DataAccessRule>>() {
+					public Collection<DataAccessRule> call() throws IOException {
+						return loadLayerAccessRules(layerIndex);
+					}
+				});
+	}
+
+	private Collection<DataAccessRule> loadLayerAccessRules(
+			final WorkspaceLayerIndex layerIndex) throws IOException {
+		final List<DrupalUserGroupService> services = getDrupalUserGroupServices();
+		LOGGER.info("Injected: loading layer rules from " + services.size()
+				+ " services");
 		HashSet<DataAccessRule> rules = new HashSet<DataAccessRule>();
+		for (Set<DataAccessRule> serviceRules : fanOut.collect(
+				"getLayerAccessRules", services,
+				new InstanceFanOut.InstanceCall<Set<DataAccessRule>>() {
+					public Set<DataAccessRule> call(
+							DrupalUserGroupService service) throws IOException {
+						HashSet<DataAccessRule> serviceRules = new HashSet<DataAccessRule>();
+						// Add workspace administrators
+						HashSet<String> adminNames = new HashSet<String>();
+						for (GeoServerRole admin : service
+								.getWorkspaceAdministrators()) {
+							adminNames.add(admin.getAuthority());
+						}
+						serviceRules.add(new DataAccessRule(service.getName(),
+								"*", AccessMode.ADMIN, adminNames));
+
+						// Add permissions that apply to single layers only
+						serviceRules.addAll(service
+								.getLayerAccessRules(layerIndex));
+						return serviceRules;
+					}
+				})) {
+			rules.addAll(serviceRules);
+		}
+		return Collections.unmodifiableSet(rules);
+	}
+
+	/**
+	 * @return Shortest interval in milliseconds at which the Drupal instances
+	 *         are checked for changes
+	 */
+	public int getRefreshInterval() {
+		int interval = DrupalSecurityServiceConfig.DEFAULT_REFRESH_INTERVAL;
+		boolean first = true;
 		for (DrupalUserGroupService service : getDrupalUserGroupServices()) {
-			// Add workspace administrators
-			HashSet<String> adminNames = new HashSet<String>();
-			try {
-				for (GeoServerRole admin : service.getWorkspaceAdministrators()) {
-					adminNames.add(admin.getAuthority());
-				}
-			} catch (SQLException e) {
-				throw new IOException(e);
-			}
-			rules.add(new DataAccessRule(service.getName(), "*",
-					AccessMode.ADMIN, adminNames));
-
-			// Add permissions that apply to single layers only
-			HashSet<DataAccessRule> layerRules;
-			try {
-				layerRules = service.getLayerAccessRules(rawCatalog);
-			} catch (SQLException e) {
-				throw new IOException(e);
+			if (first || service.getRefreshInterval() < interval) {
+				interval = service.getRefreshInterval();
+				first = false;
 			}
-			rules.addAll(layerRules);
 		}
-		return rules;
+		return interval;
+	}
+
+	/**
+	 * @return Value that changes whenever permission related data in any
+	 *         Drupal instance or the set of instances changed
+	 * @throws IOException
+	 */
+	public String getPermissionFingerprint() throws IOException {
+		final List<DrupalUserGroupService> services = getDrupalUserGroupServices();
+		final List<String> fingerprints = fanOut.collect(
+				"getPermissionFingerprint", services,
+				new InstanceFanOut.InstanceCall<String>() {
+					public String call(DrupalUserGroupService service)
+							throws IOException {
+						return service.getPermissionFingerprint();
+					}
+				});
+		final StringBuilder fingerprint = new StringBuilder();
+		for (int i = 0; i < services.size(); i++) {
+			fingerprint.append(services.get(i).getName()).append('=')
+					.append(fingerprints.get(i)).append(';');
+		}
+		return fingerprint.toString();
 	}
 
 	/**
 	 * @return Administrators of at least one workspace
-	 * @throws SQLException
+	 * @throws IOException
 	 */
 	public HashMap<WorkspaceInfoImpl, Set<GeoServerRole>> getWorkspaceAdministrators()
-			throws SQLException {
+			throws IOException {
+		final List<DrupalUserGroupService> services = getDrupalUserGroupServices();
+		final List<SortedSet<GeoServerRole>> administrators = fanOut.collect(
+				"getWorkspaceAdministrators", services,
+				new InstanceFanOut.InstanceCall<SortedSet<GeoServerRole>>() {
+					public SortedSet<GeoServerRole> call(
+							DrupalUserGroupService service) throws IOException {
+						return service.getWorkspaceAdministrators();
+					}
+				});
 		HashMap<WorkspaceInfoImpl, Set<GeoServerRole>> workspaceAdmins = new HashMap<WorkspaceInfoImpl, Set<GeoServerRole>>();
-		for (DrupalUserGroupService service : getDrupalUserGroupServices()) {
+		for (int i = 0; i < services.size(); i++) {
 			WorkspaceInfoImpl workspace = new WorkspaceInfoImpl();
-			workspace.setName(service.getName());
-			workspaceAdmins
-					.put(workspace, service.getWorkspaceAdministrators());
+			workspace.setName(services.get(i).getName());
+			workspaceAdmins.put(workspace, administrators.get(i));
 		}
 		return workspaceAdmins;
 	}
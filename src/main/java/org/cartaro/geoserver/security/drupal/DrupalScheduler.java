@@ -0,0 +1,235 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Runs background work of all Drupal instances on a few shared daemon threads.
+ */
+public final class DrupalScheduler {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	private static final int THREADS = 4;
+
+	/**
+	 * Number of Drupal databases that are queried concurrently
+	 */
+	private static final int QUERY_THREADS = 16;
+
+	private static final int QUERY_QUEUE_SIZE = 256;
+
+	/**
+	 * Fraction by which delays of periodic tasks are varied randomly so that
+	 * instances do not run in lockstep
+	 */
+	private static final double JITTER = 0.2;
+
+	/**
+	 * Factor by which the delay of a periodic task grows at most while it does
+	 * not find any changes
+	 */
+	private static final int MAX_BACKOFF = 8;
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final ThreadFactory threadFactory = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "geoserver-sec-drupal-"
+					+ threadCount.incrementAndGet());
+			// Must not keep the servlet container from shutting down
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private static final Random random = new Random();
+
+	private static ScheduledExecutorService executor;
+
+	private static ExecutorService queryExecutor;
+
+	/**
+	 * Periodic tasks that have not been cancelled
+	 */
+	private static final Set<Schedule> schedules = Collections
+			.synchronizedSet(new HashSet<Schedule>());
+
+	private DrupalScheduler() {
+	}
+
+	/**
+	 * Work that is repeated in intervals.
+	 */
+	public interface PeriodicTask {
+		/**
+		 * @return True if changes were found. Delays grow while no changes are
+		 *         found.
+		 * @throws Exception
+		 */
+		boolean run() throws Exception;
+	}
+
+	/**
+	 * @return Executor shared by all Drupal instances
+	 */
+	public static synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(THREADS, threadFactory);
+		}
+		return executor;
+	}
+
+	/**
+	 * @return Bounded executor for queries that are sent to several Drupal
+	 *         instances at once. Callers run queries themselves when it is
+	 *         saturated.
+	 */
+	public static synchronized ExecutorService getQueryExecutor() {
+		if (queryExecutor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(QUERY_THREADS,
+					QUERY_THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(QUERY_QUEUE_SIZE),
+					threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			queryExecutor = pool;
+		}
+		return queryExecutor;
+	}
+
+	/**
+	 * Runs a task in the background as soon as possible.
+	 *
+	 * @param task
+	 */
+	public static void execute(Runnable task) {
+		getExecutor().execute(task);
+	}
+
+	/**
+	 * Repeats a task until it is cancelled. Delays between runs are varied
+	 * randomly and double up to a limit whenever a run found no changes.
+	 *
+	 * @param name
+	 *            Describes the task in logs
+	 * @param interval
+	 *            Milliseconds between runs as long as changes are found
+	 * @param task
+	 * @return Handle to cancel the task
+	 */
+	public static Schedule schedule(String name, long interval,
+			PeriodicTask task) {
+		final Schedule schedule = new Schedule(name, interval, task);
+		schedules.add(schedule);
+		schedule.arm();
+		return schedule;
+	}
+
+	/**
+	 * Cancels all periodic tasks and stops all threads. Executors are created
+	 * anew when needed afterwards.
+	 */
+	public static void shutdown() {
+		LOGGER.info("Stopping background work of Drupal instances");
+		final Schedule[] cancelled;
+		synchronized (schedules) {
+			cancelled = schedules.toArray(new Schedule[schedules.size()]);
+		}
+		for (Schedule schedule : cancelled) {
+			schedule.cancel();
+		}
+		synchronized (DrupalScheduler.class) {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+			if (queryExecutor != null) {
+				queryExecutor.shutdownNow();
+				queryExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * Periodic task along with its current delay.
+	 */
+	public static final class Schedule implements Runnable {
+		private final String name;
+		private final long interval;
+		private final PeriodicTask task;
+
+		private volatile long delay;
+		private volatile boolean cancelled;
+		private volatile ScheduledFuture<?> future;
+
+		private Schedule(String name, long interval, PeriodicTask task) {
+			this.name = name;
+			this.interval = Math.max(1, interval);
+			this.task = task;
+			this.delay = this.interval;
+		}
+
+		private void arm() {
+			if (cancelled) {
+				return;
+			}
+			final long jitter = (long) ((random.nextDouble() * 2 - 1) * JITTER * delay);
+			try {
+				future = getExecutor().schedule(this, delay + jitter,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Executor has been shut down meanwhile
+				cancel();
+			}
+		}
+
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			boolean changed = false;
+			try {
+				changed = task.run();
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Periodic task " + name + " failed", e);
+			}
+			if (changed) {
+				delay = interval;
+			} else {
+				delay = Math.min(delay * 2, interval * MAX_BACKOFF);
+			}
+			arm();
+		}
+
+		/**
+		 * Stops further runs. A run in progress is completed.
+		 */
+		public void cancel() {
+			cancelled = true;
+			final ScheduledFuture<?> current = future;
+			if (current != null) {
+				current.cancel(false);
+			}
+			schedules.remove(this);
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
@@ -29,6 +29,9 @@ public class DrupalSecurityProvider extends GeoServerSecurityProvider {
     	
     	ExtensionInfo extensionInfo = new ExtensionInfo();
     	LOGGER.info("geoserver-sec-drupal git version: " +extensionInfo.getGitVersion());
+    	
+    	// Read persisted snapshots before services ask for them
+    	DrupalSnapshotStore.get();
     }
 
     @Override
@@ -21,6 +21,82 @@ public class DrupalSecurityServiceConfig extends BaseSecurityNamedServiceConfig
 	 */
 	private boolean usePrefix = false;
 
+	/**
+	 * Flag to receive changes from Drupal by PostgreSQL notifications instead
+	 * of polling. Requires the triggers from notification_triggers.sql to be
+	 * installed in the Drupal database.
+	 */
+	private boolean useNotifications = false;
+
+	private static final int DEFAULT_CONNECTION_POOL_SIZE = 8;
+	private static final int DEFAULT_CONNECTION_POOL_MAX_WAIT = 10000;
+	private static final int DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT = 300000;
+	private static final int DEFAULT_CONNECTION_VALIDATION_TIMEOUT = 5;
+	private static final int DEFAULT_CREDENTIAL_CACHE_SIZE = 1000;
+	private static final int DEFAULT_CREDENTIAL_CACHE_TIME_TO_LIVE = 300000;
+	private static final int DEFAULT_QUERY_TIMEOUT = 5000;
+	public static final int DEFAULT_REFRESH_INTERVAL = 2000;
+	private static final int DEFAULT_ROLE_CACHE_SIZE = 1000;
+	private static final int DEFAULT_ROLE_CACHE_TIME_TO_LIVE = 60000;
+
+	/**
+	 * Maximum number of connections that are opened to the Drupal database.
+	 * Settings of the connection pool are nullable because configurations
+	 * written by older versions lack them.
+	 */
+	private Integer connectionPoolSize;
+
+	/**
+	 * Milliseconds to wait for a free connection before giving up.
+	 */
+	private Integer connectionPoolMaxWait;
+
+	/**
+	 * Milliseconds after which unused connections get closed.
+	 */
+	private Integer connectionPoolIdleTimeout;
+
+	/**
+	 * Seconds to wait for a pooled connection to prove it is still usable.
+	 */
+	private Integer connectionValidationTimeout;
+
+	/**
+	 * Number of users whose successfully verified credentials are remembered
+	 * to skip Drupal's password hashing on repeated logins. Set to 0 to
+	 * disable.
+	 */
+	private Integer credentialCacheSize;
+
+	/**
+	 * Milliseconds a successful credential verification is remembered.
+	 */
+	private Integer credentialCacheTimeToLive;
+
+	/**
+	 * Milliseconds GeoServer waits for this instance when aggregating roles
+	 * and access rules of all Drupal instances. Late instances are served
+	 * from the last data they delivered.
+	 */
+	private Integer queryTimeout;
+
+	/**
+	 * Milliseconds between checks for changed roles and permissions. Checks
+	 * become less frequent while nothing changes.
+	 */
+	private Integer refreshInterval;
+
+	/**
+	 * Number of users whose roles are remembered. Set to 0 to disable.
+	 */
+	private Integer roleCacheSize;
+
+	/**
+	 * Milliseconds roles of a user are remembered at most. Changes detected
+	 * in Drupal clear the cache earlier.
+	 */
+	private Integer roleCacheTimeToLive;
+
 	public Integer getDatabasePort() {
 		return databasePort;
 	}
@@ -140,4 +216,123 @@ public class DrupalSecurityServiceConfig extends BaseSecurityNamedServiceConfig
 		this.usePrefix = usePrefix;
 	}
 
+	public boolean isUseNotifications() {
+		return useNotifications;
+	}
+
+	public void setUseNotifications(boolean useNotifications) {
+		this.useNotifications = useNotifications;
+	}
+
+	public Integer getConnectionPoolSize() {
+		if (connectionPoolSize == null || connectionPoolSize < 1) {
+			return DEFAULT_CONNECTION_POOL_SIZE;
+		}
+		return connectionPoolSize;
+	}
+
+	public void setConnectionPoolSize(Integer connectionPoolSize) {
+		this.connectionPoolSize = connectionPoolSize;
+	}
+
+	public Integer getConnectionPoolMaxWait() {
+		if (connectionPoolMaxWait == null || connectionPoolMaxWait < 0) {
+			return DEFAULT_CONNECTION_POOL_MAX_WAIT;
+		}
+		return connectionPoolMaxWait;
+	}
+
+	public void setConnectionPoolMaxWait(Integer connectionPoolMaxWait) {
+		this.connectionPoolMaxWait = connectionPoolMaxWait;
+	}
+
+	public Integer getConnectionPoolIdleTimeout() {
+		if (connectionPoolIdleTimeout == null || connectionPoolIdleTimeout < 0) {
+			return DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT;
+		}
+		return connectionPoolIdleTimeout;
+	}
+
+	public void setConnectionPoolIdleTimeout(Integer connectionPoolIdleTimeout) {
+		this.connectionPoolIdleTimeout = connectionPoolIdleTimeout;
+	}
+
+	public Integer getConnectionValidationTimeout() {
+		if (connectionValidationTimeout == null || connectionValidationTimeout < 0) {
+			return DEFAULT_CONNECTION_VALIDATION_TIMEOUT;
+		}
+		return connectionValidationTimeout;
+	}
+
+	public void setConnectionValidationTimeout(
+			Integer connectionValidationTimeout) {
+		this.connectionValidationTimeout = connectionValidationTimeout;
+	}
+
+	public Integer getCredentialCacheSize() {
+		if (credentialCacheSize == null || credentialCacheSize < 0) {
+			return DEFAULT_CREDENTIAL_CACHE_SIZE;
+		}
+		return credentialCacheSize;
+	}
+
+	public void setCredentialCacheSize(Integer credentialCacheSize) {
+		this.credentialCacheSize = credentialCacheSize;
+	}
+
+	public Integer getCredentialCacheTimeToLive() {
+		if (credentialCacheTimeToLive == null || credentialCacheTimeToLive < 0) {
+			return DEFAULT_CREDENTIAL_CACHE_TIME_TO_LIVE;
+		}
+		return credentialCacheTimeToLive;
+	}
+
+	public void setCredentialCacheTimeToLive(Integer credentialCacheTimeToLive) {
+		this.credentialCacheTimeToLive = credentialCacheTimeToLive;
+	}
+
+	public Integer getQueryTimeout() {
+		if (queryTimeout == null || queryTimeout < 1) {
+			return DEFAULT_QUERY_TIMEOUT;
+		}
+		return queryTimeout;
+	}
+
+	public void setQueryTimeout(Integer queryTimeout) {
+		this.queryTimeout = queryTimeout;
+	}
+
+	public Integer getRefreshInterval() {
+		if (refreshInterval == null || refreshInterval < 1) {
+			return DEFAULT_REFRESH_INTERVAL;
+		}
+		return refreshInterval;
+	}
+
+	public void setRefreshInterval(Integer refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	public Integer getRoleCacheSize() {
+		if (roleCacheSize == null || roleCacheSize < 0) {
+			return DEFAULT_ROLE_CACHE_SIZE;
+		}
+		return roleCacheSize;
+	}
+
+	public void setRoleCacheSize(Integer roleCacheSize) {
+		this.roleCacheSize = roleCacheSize;
+	}
+
+	public Integer getRoleCacheTimeToLive() {
+		if (roleCacheTimeToLive == null || roleCacheTimeToLive < 0) {
+			return DEFAULT_ROLE_CACHE_TIME_TO_LIVE;
+		}
+		return roleCacheTimeToLive;
+	}
+
+	public void setRoleCacheTimeToLive(Integer roleCacheTimeToLive) {
+		this.roleCacheTimeToLive = roleCacheTimeToLive;
+	}
+
 }
@@ -0,0 +1,104 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.geoserver.security.impl.GeoServerRole;
+
+/**
+ * Immutable state of roles and permissions of a Drupal instance at a point in
+ * time. All names are prefixed as required by the instance's configuration.
+ */
+public class DrupalSecuritySnapshot {
+	private final String fingerprint;
+	private final boolean installing;
+	private final long createdAt;
+	private final SortedSet<GeoServerRole> roles;
+	private final SortedSet<GeoServerRole> workspaceAdministrators;
+	private final Map<String, Set<String>> readLayerRoles;
+	private final Map<String, Set<String>> writeLayerRoles;
+	private final Map<String, SortedSet<String>> userNamesByRole;
+
+	/**
+	 * @param fingerprint
+	 *            Fingerprint of the data this snapshot was built from
+	 * @param installing
+	 *            True if Drupal was being installed
+	 * @param createdAt
+	 *            Time the data was read
+	 * @param roles
+	 *            All roles
+	 * @param workspaceAdministrators
+	 *            Roles that administer the instance's workspace
+	 * @param readLayerRoles
+	 *            Role names by layer name that may read the layer
+	 * @param writeLayerRoles
+	 *            Role names by layer name that may write the layer
+	 * @param userNamesByRole
+	 *            User names by role name
+	 */
+	public DrupalSecuritySnapshot(String fingerprint, boolean installing,
+			long createdAt, SortedSet<GeoServerRole> roles,
+			SortedSet<GeoServerRole> workspaceAdministrators,
+			Map<String, Set<String>> readLayerRoles,
+			Map<String, Set<String>> writeLayerRoles,
+			Map<String, SortedSet<String>> userNamesByRole) {
+		this.fingerprint = fingerprint;
+		this.installing = installing;
+		this.createdAt = createdAt;
+		this.roles = Collections.unmodifiableSortedSet(roles);
+		this.workspaceAdministrators = Collections
+				.unmodifiableSortedSet(workspaceAdministrators);
+		this.readLayerRoles = Collections.unmodifiableMap(readLayerRoles);
+		this.writeLayerRoles = Collections.unmodifiableMap(writeLayerRoles);
+		this.userNamesByRole = Collections.unmodifiableMap(userNamesByRole);
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public boolean isInstalling() {
+		return installing;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public SortedSet<GeoServerRole> getRoles() {
+		return roles;
+	}
+
+	public SortedSet<GeoServerRole> getWorkspaceAdministrators() {
+		return workspaceAdministrators;
+	}
+
+	public Map<String, Set<String>> getReadLayerRoles() {
+		return readLayerRoles;
+	}
+
+	public Map<String, Set<String>> getWriteLayerRoles() {
+		return writeLayerRoles;
+	}
+
+	public Map<String, SortedSet<String>> getUserNamesByRole() {
+		return userNamesByRole;
+	}
+
+	/**
+	 * @param role
+	 * @return Users having role
+	 */
+	public SortedSet<String> getUserNamesForRole(GeoServerRole role) {
+		final SortedSet<String> userNames = userNamesByRole.get(role
+				.getAuthority());
+		if (userNames == null) {
+			return Collections.unmodifiableSortedSet(new TreeSet<String>());
+		}
+		return userNames;
+	}
+}
@@ -0,0 +1,292 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.security.impl.GeoServerRole;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Persists the last snapshot of each Drupal instance in the data directory,
+ * see security/drupal/&lt;instance&gt;.snapshot. GeoServer can thus serve
+ * rules right after startup even if Drupal databases are slow or down.
+ *
+ * Files start with a magic number and a format version. Snapshots of other
+ * versions or of differently configured instances are ignored.
+ */
+public class DrupalSnapshotStore {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	private static final int MAGIC = 0x44525053;
+
+	/**
+	 * Increment whenever the format changes
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String SUFFIX = ".snapshot";
+
+	private static DrupalSnapshotStore instance;
+
+	private final File directory;
+
+	/**
+	 * Snapshots read at startup which have not been claimed by an instance yet
+	 */
+	private final ConcurrentHashMap<String, StoredSnapshot> preloaded = new ConcurrentHashMap<String, StoredSnapshot>();
+
+	/**
+	 * @param directory
+	 *            Directory holding the snapshot files
+	 */
+	public DrupalSnapshotStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return Store within GeoServer's data directory or null if it is not
+	 *         available
+	 */
+	public static synchronized DrupalSnapshotStore get() {
+		if (instance == null) {
+			final GeoServerResourceLoader loader = GeoServerExtensions
+					.bean(GeoServerResourceLoader.class);
+			if (loader == null) {
+				return null;
+			}
+			try {
+				instance = new DrupalSnapshotStore(
+						loader.findOrCreateDirectory("security", "drupal"));
+				instance.preload();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING,
+						"Cannot access directory for Drupal snapshots", e);
+				return null;
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Reads all stored snapshots into memory.
+	 */
+	public void preload() {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			final String fileName = file.getName();
+			if (!fileName.endsWith(SUFFIX)) {
+				continue;
+			}
+			final StoredSnapshot stored = read(file);
+			if (stored != null) {
+				preloaded.put(fileName.substring(0,
+						fileName.length() - SUFFIX.length()), stored);
+			}
+		}
+		LOGGER.info("Loaded " + preloaded.size() + " Drupal snapshots");
+	}
+
+	/**
+	 * @param name
+	 *            Name of Drupal instance
+	 * @param source
+	 *            Identifies database and prefix the snapshot must stem from
+	 * @return Last stored snapshot or null if there is none that matches
+	 *         source
+	 */
+	public DrupalSecuritySnapshot load(String name, String source) {
+		StoredSnapshot stored = preloaded.remove(getFileName(name));
+		if (stored == null) {
+			stored = read(getFile(name));
+		}
+		if (stored == null || !stored.source.equals(source)) {
+			return null;
+		}
+		return stored.snapshot;
+	}
+
+	/**
+	 * Replaces the stored snapshot of an instance.
+	 *
+	 * @param name
+	 *            Name of Drupal instance
+	 * @param source
+	 *            Identifies database and prefix the snapshot stems from
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public synchronized void save(String name, String source,
+			DrupalSecuritySnapshot snapshot) throws IOException {
+		final File file = getFile(name);
+		final File temporary = new File(directory, file.getName() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			write(out, source, snapshot);
+		} finally {
+			out.close();
+		}
+		// Readers must never see partially written files
+		if (!temporary.renameTo(file)) {
+			file.delete();
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+	}
+
+	private String getFileName(String name) {
+		return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+	}
+
+	private File getFile(String name) {
+		return new File(directory, getFileName(name) + SUFFIX);
+	}
+
+	/**
+	 * @param file
+	 * @return Snapshot stored in file or null if it is missing or unreadable
+	 */
+	private StoredSnapshot read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Ignoring unreadable Drupal snapshot "
+					+ file, e);
+			return null;
+		}
+	}
+
+	static void write(DataOutputStream out, String source,
+			DrupalSecuritySnapshot snapshot) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeUTF(source);
+		out.writeUTF(snapshot.getFingerprint());
+		out.writeBoolean(snapshot.isInstalling());
+		out.writeLong(snapshot.getCreatedAt());
+		writeRoles(out, snapshot.getRoles());
+		writeRoles(out, snapshot.getWorkspaceAdministrators());
+		writeMap(out, snapshot.getReadLayerRoles());
+		writeMap(out, snapshot.getWriteLayerRoles());
+		writeMap(out, snapshot.getUserNamesByRole());
+	}
+
+	static StoredSnapshot read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a Drupal snapshot");
+		}
+		final int version = in.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported snapshot version " + version);
+		}
+		final String source = in.readUTF();
+		final String fingerprint = in.readUTF();
+		final boolean installing = in.readBoolean();
+		final long createdAt = in.readLong();
+		// Layers granting the same roles share a single set
+		final RoleInterner interner = new RoleInterner();
+		final SortedSet<GeoServerRole> roles = readRoles(in, interner);
+		final SortedSet<GeoServerRole> workspaceAdministrators = readRoles(in, interner);
+		final Map<String, Set<String>> readLayerRoles = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, SortedSet<String>> entry : readMap(in)
+				.entrySet()) {
+			readLayerRoles.put(entry.getKey(), interner.getRoleNames(entry.getValue()));
+		}
+		final Map<String, Set<String>> writeLayerRoles = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, SortedSet<String>> entry : readMap(in)
+				.entrySet()) {
+			writeLayerRoles.put(entry.getKey(), interner.getRoleNames(entry.getValue()));
+		}
+		final Map<String, SortedSet<String>> userNamesByRole = readMap(in);
+		return new StoredSnapshot(source, new DrupalSecuritySnapshot(
+				fingerprint, installing, createdAt, roles,
+				workspaceAdministrators, readLayerRoles, writeLayerRoles,
+				userNamesByRole));
+	}
+
+	private static void writeRoles(DataOutputStream out,
+			Set<GeoServerRole> roles) throws IOException {
+		out.writeInt(roles.size());
+		for (GeoServerRole role : roles) {
+			out.writeUTF(role.getAuthority());
+		}
+	}
+
+	private static SortedSet<GeoServerRole> readRoles(DataInputStream in,
+			RoleInterner interner) throws IOException {
+		final TreeSet<GeoServerRole> roles = new TreeSet<GeoServerRole>();
+		for (int i = in.readInt(); i > 0; i--) {
+			roles.add(interner.getRole(in.readUTF()));
+		}
+		return roles;
+	}
+
+	private static void writeMap(DataOutputStream out,
+			Map<String, ? extends Set<String>> map) throws IOException {
+		out.writeInt(map.size());
+		for (Map.Entry<String, ? extends Set<String>> entry : map.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (String value : entry.getValue()) {
+				out.writeUTF(value);
+			}
+		}
+	}
+
+	private static Map<String, SortedSet<String>> readMap(DataInputStream in)
+			throws IOException {
+		final HashMap<String, SortedSet<String>> map = new HashMap<String, SortedSet<String>>();
+		for (int i = in.readInt(); i > 0; i--) {
+			final String key = in.readUTF();
+			final TreeSet<String> values = new TreeSet<String>();
+			for (int j = in.readInt(); j > 0; j--) {
+				values.add(in.readUTF());
+			}
+			map.put(key, Collections.unmodifiableSortedSet(values));
+		}
+		return map;
+	}
+
+	/**
+	 * Snapshot along with the source it stems from
+	 */
+	static class StoredSnapshot {
+		final String source;
+		final DrupalSecuritySnapshot snapshot;
+
+		StoredSnapshot(String source, DrupalSecuritySnapshot snapshot) {
+			this.source = source;
+			this.snapshot = snapshot;
+		}
+	}
+}
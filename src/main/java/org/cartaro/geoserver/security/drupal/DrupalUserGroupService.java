@@ -1,18 +1,26 @@
 package org.cartaro.geoserver.security.drupal;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.sql.Array;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.LayerInfo;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.security.AccessMode;
 import org.geoserver.security.GeoServerUserGroupService;
 import org.geoserver.security.GeoServerUserGroupStore;
@@ -29,7 +37,7 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
 public class DrupalUserGroupService extends AbstractGeoServerSecurityService
-		implements GeoServerUserGroupService {
+		implements GeoServerUserGroupService, DrupalDataChangeListener {
 	protected static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.security");
 	
 	/**
@@ -52,17 +60,121 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 	 */
 	private static final String ANONYMOUS_USER = "anonymous user";
 	
+	/**
+	 * Prefixes of Drupal permissions that grant access to a single layer.
+	 * They are followed by the layer's name.
+	 */
+	private static final String READ_LAYER_PERMISSION = "read layer ";
+	private static final String WRITE_LAYER_PERMISSION = "write layer ";
+	
 	private Set<UserGroupLoadedListener> listeners = Collections
 			.synchronizedSet(new HashSet<UserGroupLoadedListener>());
 	private DrupalDatabaseConnector connector;
 	private String passwordEncoderName;
 	private String passwordValidatorName;
+	private int queryTimeout;
+	private int refreshInterval;
+	
+	/**
+	 * Receives changes from Drupal if notifications are enabled, null otherwise
+	 */
+	private DrupalNotificationListener notificationListener;
+	
+	/**
+	 * Roles and permissions used to answer requests, null until loaded first
+	 */
+	private final AtomicReference<DrupalSecuritySnapshot> snapshot = new AtomicReference<DrupalSecuritySnapshot>();
+	private final AtomicBoolean snapshotRefreshing = new AtomicBoolean(false);
+	private volatile boolean snapshotForced;
+	
+	/**
+	 * Periodic check for changes in Drupal, null while the snapshot is not
+	 * used
+	 */
+	private volatile DrupalScheduler.Schedule refreshSchedule;
+	
+	/**
+	 * Set once this instance has been replaced so that it does not start
+	 * background work again
+	 */
+	private volatile boolean disposed;
+	
+	/**
+	 * Roles by prefixed user name
+	 */
+	private volatile ExpiringCache<String, SortedSet<GeoServerRole>> roleCache = new ExpiringCache<String, SortedSet<GeoServerRole>>(0, 0);
+	
+	/**
+	 * Incremented whenever cached roles are invalidated so that roles loaded
+	 * meanwhile are not cached
+	 */
+	private long roleCacheGeneration;
+	
+	/**
+	 * Number of user names fetched per round trip when building the filter
+	 * of known user names
+	 */
+	private static final int USER_NAME_FETCH_SIZE = 1000;
+	
+	/**
+	 * Share of unknown user names that still get looked up in Drupal
+	 */
+	private static final double USER_NAME_FALSE_POSITIVE_RATE = 0.01;
+	
+	private static final int UNKNOWN_USER_CACHE_SIZE = 1000;
+	private static final long UNKNOWN_USER_CACHE_TIME_TO_LIVE = 10000;
+	
+	/**
+	 * Unprefixed user names that are known not to exist
+	 */
+	private final KnownUserNames knownUserNames = new KnownUserNames(
+			UNKNOWN_USER_CACHE_SIZE, UNKNOWN_USER_CACHE_TIME_TO_LIVE);
+	private final AtomicBoolean knownUserNamesBuilding = new AtomicBoolean(false);
+	
+	/**
+	 * Periodic check of the users table that keeps the filter of known user
+	 * names current, null until the filter is used
+	 */
+	private volatile DrupalScheduler.Schedule userNameSchedule;
+	
+	/**
+	 * True if this instance only loads accounts for an authentication
+	 * provider
+	 */
+	private boolean accountsOnly;
+	
+	/**
+	 * Coalesces concurrent account queries of the same user
+	 */
+	private final SingleFlight<String, DrupalAccount> accountLoads = new SingleFlight<String, DrupalAccount>();
+	
+	/**
+	 * Identifies database and prefix of persisted snapshots
+	 */
+	private String snapshotSource;
 	
 	private enum PropertyQueryOperator {
 		HAS_PROPERTY,
 		NOT_HAS_PROPERTY
 	};
 	
+	/**
+	 * Reads prefixed users from the column "name" of a result set.
+	 */
+	private final ResultSetHandler<SortedSet<GeoServerUser>> userListHandler = new ResultSetHandler<SortedSet<GeoServerUser>>() {
+		public SortedSet<GeoServerUser> handle(ResultSet rs) throws SQLException {
+			TreeSet<GeoServerUser> users = new TreeSet<GeoServerUser>();
+			while (rs.next()) {
+				users.add(new GeoServerUser(connector.addInstancePrefix(rs
+						.getString("name"))));
+				HashSet<GrantedAuthority> roleset = new HashSet<GrantedAuthority>();
+				roleset.add(new GeoServerRole("schreiber")); // TODO: why is this needed. does the set just need at least one role
+				users.last().setAuthorities(roleset);
+			}
+			return Collections.unmodifiableSortedSet(users);
+		}
+	};
+	
 	@Override
 	public void initializeFromConfig(SecurityNamedServiceConfig config)
 			throws IOException {
@@ -70,15 +182,105 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 		DrupalSecurityServiceConfig drupalConfig = (DrupalSecurityServiceConfig) config;
 		passwordEncoderName = drupalConfig.getPasswordEncoderName();
 		passwordValidatorName = drupalConfig.getPasswordPolicyName();
+		queryTimeout = drupalConfig.getQueryTimeout();
+		refreshInterval = drupalConfig.getRefreshInterval();
+		roleCache = new ExpiringCache<String, SortedSet<GeoServerRole>>(
+				drupalConfig.getRoleCacheSize(), drupalConfig.getRoleCacheTimeToLive());
 
+		stopBackgroundWork();
 		if(connector!=null){
 			connector.close();
 		}
+		disposed = false;
+		// The database might have changed
+		knownUserNames.reset();
+		snapshotSource = drupalConfig.getDatabaseHost() + ":" + drupalConfig.getDatabasePort() + "/"
+				+ drupalConfig.getDatabaseName() + "|" + drupalConfig.getDrupalInstancePrefix();
 		try {
 			connector = new DrupalDatabaseConnector(drupalConfig);
 		} catch (ClassNotFoundException e) {
 			throw new IOException(e);
 		}
+		if (accountsOnly) {
+			return;
+		}
+		// Start with the persisted snapshot if it stems from the same database
+		final DrupalSnapshotStore store = DrupalSnapshotStore.get();
+		snapshot.set(store == null ? null : store.load(drupalConfig.getName(), snapshotSource));
+		if(drupalConfig.isUseNotifications()){
+			notificationListener = new DrupalNotificationListener(drupalConfig.getName(), connector, this);
+			notificationListener.start();
+		}
+		if(snapshot.get()!=null){
+			LOGGER.info("Using persisted roles and permissions of Drupal instance " + drupalConfig.getName());
+			// Reconcile with the live database
+			refreshSnapshot(false);
+			startRefreshing();
+		}
+	}
+
+	/**
+	 * Stops background work and closes the connections of an instance that
+	 * has been replaced. Background work is not started again afterwards.
+	 */
+	public synchronized void dispose() {
+		disposed = true;
+		stopBackgroundWork();
+		if(connector!=null){
+			connector.close();
+		}
+	}
+
+	/**
+	 * @param prefixed
+	 *            User name with the prefix of this instance
+	 * @return User name as known to Drupal
+	 * @throws IllegalArgumentException
+	 *             If the name lacks the prefix of this instance
+	 */
+	public String stripInstancePrefix(String prefixed) {
+		return connector.stripInstancePrefix(prefixed);
+	}
+
+	/**
+	 * Restricts this instance to loading accounts. It neither keeps a
+	 * snapshot of roles and permissions current nor persists one, and it
+	 * does not listen for notifications. Must be called before
+	 * {@link #initializeFromConfig(SecurityNamedServiceConfig)}.
+	 * @param accountsOnly
+	 */
+	public void setAccountsOnly(boolean accountsOnly) {
+		this.accountsOnly = accountsOnly;
+	}
+
+	private synchronized void stopBackgroundWork() {
+		if(refreshSchedule!=null){
+			refreshSchedule.cancel();
+			refreshSchedule = null;
+		}
+		if(userNameSchedule!=null){
+			userNameSchedule.cancel();
+			userNameSchedule = null;
+		}
+		if(notificationListener!=null){
+			notificationListener.stop();
+			notificationListener = null;
+		}
+	}
+
+	/**
+	 * Checks Drupal for changes periodically on the shared scheduler.
+	 */
+	private synchronized void startRefreshing() {
+		if (disposed || accountsOnly || (refreshSchedule != null && !refreshSchedule.isCancelled())) {
+			return;
+		}
+		refreshSchedule = DrupalScheduler.schedule("refresh " + getName(), refreshInterval,
+				new DrupalScheduler.PeriodicTask() {
+					public boolean run() {
+						return runRefresh();
+					}
+				});
 	}
 
 	public UserDetails loadUserByUsername(String username)
@@ -109,22 +311,27 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 		return null;
 	}
 
-	public GeoServerUser getUserByUsername(String username) throws IOException {
+	public GeoServerUser getUserByUsername(final String username) throws IOException {
 		LOGGER.info("Drupal GroupService loads user");
+		final String drupalName = connector.stripInstancePrefix(username);
+		if (isUnknownUserName(drupalName)) {
+			return null;
+		}
 		try {
-			connector.connect();
-			ResultSet rs = connector.getResultSet("select exists("
+			return connector.query("select exists("
 					+ "select true from users where name=?" + ") as exists",
-					connector.stripInstancePrefix(username));
-			rs.next();
-			if (rs.getBoolean("exists")) {
-				return new GeoServerUser(username);
-			}
-			return null;
+					new ResultSetHandler<GeoServerUser>() {
+						public GeoServerUser handle(ResultSet rs) throws SQLException {
+							rs.next();
+							if (rs.getBoolean("exists")) {
+								return new GeoServerUser(username);
+							}
+							knownUserNames.setUnknown(drupalName);
+							return null;
+						}
+					}, drupalName);
 		} catch (SQLException e) {
 			throw new IOException(e);
-		} finally {
-			connector.disconnect();
 		}
 	}
 
@@ -140,22 +347,10 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 
 	public SortedSet<GeoServerUser> getUsers() throws IOException {
 		LOGGER.info("Drupal GroupService loads user list");
-		TreeSet<GeoServerUser> users = new TreeSet<GeoServerUser>();
 		try {
-			connector.connect();
-			ResultSet rs = connector.getResultSet("select name from users");
-			while (rs.next()) {
-				users.add(new GeoServerUser(connector.addInstancePrefix(rs
-						.getString("name"))));
-				HashSet<GrantedAuthority> roleset = new HashSet<GrantedAuthority>();
-				roleset.add(new GeoServerRole("schreiber")); // TODO: why is this needed. does the set just need at least one role
-				users.last().setAuthorities(roleset);
-			}
-			return Collections.unmodifiableSortedSet(users);
+			return connector.query("select name from users", userListHandler);
 		} catch (SQLException e) {
 			throw new IOException(e);
-		} finally {
-			connector.disconnect();
 		}
 	}
 
@@ -179,7 +374,57 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 	}
 
 	public void load() throws IOException {
-		// No load roles loaded here since users are loaded whenever required
+		invalidateRoles();
+		knownUserNames.clearUnknown();
+		// Roles are loaded in the background, listeners are informed afterwards
+		refreshSnapshot(true);
+	}
+	
+	/**
+	 * Forgets the cached roles of all users.
+	 */
+	public void invalidateRoles() {
+		final ExpiringCache<String, SortedSet<GeoServerRole>> cache = roleCache;
+		synchronized (cache) {
+			roleCacheGeneration++;
+			cache.clear();
+		}
+	}
+	
+	/**
+	 * Forgets the cached roles of a user.
+	 * @param username Prefixed user name
+	 */
+	public void invalidateRoles(String username) {
+		final ExpiringCache<String, SortedSet<GeoServerRole>> cache = roleCache;
+		synchronized (cache) {
+			roleCacheGeneration++;
+			cache.remove(username);
+		}
+	}
+	
+	/**
+	 * Caches roles unless they were invalidated since loading started.
+	 * @param username Prefixed user name
+	 * @param roles
+	 * @param generation Value of roleCacheGeneration before loading started
+	 */
+	private void cacheRoles(String username, SortedSet<GeoServerRole> roles, long generation) {
+		final ExpiringCache<String, SortedSet<GeoServerRole>> cache = roleCache;
+		synchronized (cache) {
+			if (generation == roleCacheGeneration) {
+				cache.put(username, roles);
+			}
+		}
+	}
+	
+	private long getRoleCacheGeneration() {
+		synchronized (roleCache) {
+			return roleCacheGeneration;
+		}
+	}
+	
+	private void fireUsersAndGroupsChanged() {
 		UserGroupLoadedEvent event = new UserGroupLoadedEvent(this);
 		synchronized(listeners) {
 			for (UserGroupLoadedListener listener : listeners) {
@@ -187,6 +432,35 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 			}
 		}
 	}
+	
+	/**
+	 * Called by the notification listener whenever Drupal's data changed.
+	 * Changes of users only affect cached accounts and the filter of known
+	 * user names. Any other change rebuilds the snapshot, which in turn
+	 * informs listeners and rule DAOs.
+	 */
+	public void drupalDataChanged(String table) {
+		if ("users".equals(table)) {
+			invalidateRoles();
+			knownUserNames.clearUnknown();
+			DrupalScheduler.execute(new Runnable() {
+				public void run() {
+					updateUserNameFilter();
+				}
+			});
+			fireUsersAndGroupsChanged();
+			return;
+		}
+		refreshSnapshot(true);
+	}
+
+	/**
+	 * @return Milliseconds to wait for this instance when aggregating data of
+	 *         all Drupal instances
+	 */
+	public int getQueryTimeout() {
+		return queryTimeout;
+	}
 
 	public String getPasswordEncoderName() {
 		return passwordEncoderName;
@@ -197,16 +471,15 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 	}
 
 	public int getUserCount() throws IOException {
-		ResultSet rs;
 		try {
-			connector.connect();
-			rs = connector.getResultSet("select count(*) from users");
-			rs.next();
-			return rs.getInt("count");
+			return connector.query("select count(*) from users", new ResultSetHandler<Integer>() {
+				public Integer handle(ResultSet rs) throws SQLException {
+					rs.next();
+					return rs.getInt("count");
+				}
+			});
 		} catch (SQLException e) {
 			throw new IOException(e);
-		} finally {
-			connector.disconnect();
 		}
 	}
 
@@ -217,213 +490,678 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 
 	public SortedSet<String> getUserNamesForRole(GeoServerRole role)
 			throws IOException {
-		TreeSet<String> userNames = new TreeSet<String>();
+		return getSnapshot().getUserNamesForRole(role);
+	}
 
-		// Add all users of instance having the role
-		ResultSet rs;
-		try {
-			connector.connect();
-			rs = connector
-					.getResultSet(
-							"select users.name from users join users_roles using(uid) join role using(rid) where role.name =?",
-							connector.stripInstancePrefix(role).getAuthority());
-			while (rs.next()) {
-				userNames
-						.add(connector.addInstancePrefix(
-								new GeoServerRole(rs.getString("name")))
-								.getAuthority());
+	/**
+	 * Roles are cached until they expire or changes in Drupal are detected.
+	 */
+	public SortedSet<GeoServerRole> getRolesForUser(String username)
+			throws IOException {
+		final SortedSet<GeoServerRole> cached = roleCache.get(username);
+		if (cached != null) {
+			return cached;
+		}
+		return loadAccount(username).getRoles();
+	}
+
+	/**
+	 * Reads password hash, status and roles of a user in a single round trip.
+	 * The installation state is taken from the connector's cache. The roles
+	 * read are cached for {@link #getRolesForUser(String)}. Concurrent calls
+	 * for the same user share a single query.
+	 * @param username Prefixed user name
+	 * @return Account which lacks a password hash if the user does not exist
+	 * @throws IOException
+	 */
+	public DrupalAccount loadAccount(final String username) throws IOException {
+		return accountLoads.execute(username, new Callable<DrupalAccount>() {
+			public DrupalAccount call() throws IOException {
+				return queryAccount(username);
 			}
-			
-			if(DRUPAL_ROOT_ROLE.equals(role)){
-				// id=1 means administrative privileges in Drupal
-				rs = connector.getResultSet("select name from users where uid=1");
-				if(rs.next()){
-					userNames.add(connector.addInstancePrefix(rs.getString("name")));
-				}
+		});
+	}
+
+	private DrupalAccount queryAccount(String username) throws IOException {
+		final long generation = getRoleCacheGeneration();
+		final String drupalName = connector.stripInstancePrefix(username);
+		final DrupalAccount account;
+		try {
+			final boolean installing = connector.isDrupalCurrentlyInstalling();
+			// Users who registered after the filter of known user names was
+			// built must be able to log in, hence only Drupal's answers count
+			if (knownUserNames.isRecentlyUnknown(drupalName)) {
+				return new DrupalAccount(null, false, installing,
+						buildRolesForUser(new String[0], installing, false));
 			}
+			account = connector.query(
+					"select users.uid, users.pass, users.status, array_agg(role.name) as roles " +
+					"from users left join users_roles using(uid) left join role using(rid) " +
+					"where users.name=? group by users.uid, users.pass, users.status",
+					new ResultSetHandler<DrupalAccount>() {
+						public DrupalAccount handle(ResultSet rs) throws SQLException {
+							if (!rs.next()) {
+								knownUserNames.setUnknown(drupalName);
+								return new DrupalAccount(null, false, installing,
+										buildRolesForUser(new String[0], installing, false));
+							}
+							if (!disposed && knownUserNames.isMissing(drupalName)) {
+								// Lookups would not find the user until the next rebuild
+								rebuildUserNameFilterLater();
+							}
+							final String passwordHash = rs.getString("pass");
+							final boolean active = rs.getInt("status") == 1;
+							// id=1 means administrative privileges in Drupal
+							final boolean root = rs.getInt("uid") == 1;
+							final Array roleArray = rs.getArray("roles");
+							final String[] drupalRoles = roleArray == null ? new String[0]
+									: (String[]) roleArray.getArray();
+							return new DrupalAccount(passwordHash, active, installing,
+									buildRolesForUser(drupalRoles, installing, root));
+						}
+					}, drupalName);
 		} catch (SQLException e) {
 			throw new IOException(e);
-		} finally {
-			connector.disconnect();
 		}
-		return Collections.unmodifiableSortedSet(userNames);
+		cacheRoles(username, account.getRoles(), generation);
+		return account;
 	}
 
-	public SortedSet<GeoServerRole> getRolesForUser(String username)
-			throws IOException {
-		// Add role for instance user
-		TreeSet<GeoServerRole> roles = new TreeSet<GeoServerRole>();
-		try {
-			connector.connect();
-			ResultSet rs = connector
-					.getResultSet(
-							"select role.name from role join users_roles using(rid) join " +
-							"users using(uid) where users.name=?",
-							connector.stripInstancePrefix(
-									new GeoServerRole(username)).getAuthority());
-			while (rs.next()) {
-				roles.add(connector.addInstancePrefix(new GeoServerRole(rs
-						.getString("name"))));
-			}
-			
-			// Make all users workspace administrators during Drupal installation
-			if(connector.isDrupalCurrentlyInstalling()){
-				roles.add(connector.addInstancePrefix(INSTALLATION_ADMINISTRATOR));
-			} else {
-				// id=1 means administrative privileges in Drupal
-				ResultSet rsAdmin = connector.getResultSet("select uid=1 as admin from users where name=?", connector.stripInstancePrefix(username));
-				if(rsAdmin.next() && rsAdmin.getBoolean("admin")){
-					roles.add(connector.addInstancePrefix(DRUPAL_ROOT_ROLE));
+	/**
+	 * Tells whether a user does not exist without asking Drupal. Starts
+	 * building the filter of known user names unless available.
+	 * @param drupalName Unprefixed user name
+	 * @return True if the user definitely does not exist
+	 */
+	private boolean isUnknownUserName(String drupalName) {
+		if (!knownUserNames.hasFilter()) {
+			buildUserNameFilter();
+		}
+		return knownUserNames.isUnknown(drupalName);
+	}
+	
+	/**
+	 * Builds the filter of known user names in the background and starts
+	 * checking the users table for changes.
+	 */
+	private void buildUserNameFilter() {
+		if (disposed) {
+			return;
+		}
+		startUserNameChecks();
+		rebuildUserNameFilterLater();
+	}
+	
+	private void rebuildUserNameFilterLater() {
+		if (!knownUserNamesBuilding.compareAndSet(false, true)) {
+			return;
+		}
+		DrupalScheduler.execute(new Runnable() {
+			public void run() {
+				try {
+					rebuildUserNameFilter();
+				} finally {
+					knownUserNamesBuilding.set(false);
 				}
 			}
-			
-			// Assign all known users the permissions of being authenticated and anonymous.
-			roles.add(new GeoServerRole(connector.addInstancePrefix(AUTHENTICATED_USER)));
-			roles.add(new GeoServerRole(connector.addInstancePrefix(ANONYMOUS_USER)));
+		});
+	}
+	
+	/**
+	 * Checks the users table periodically on the shared scheduler. Stops by
+	 * itself once this instance has been garbage collected, which is how
+	 * authentication providers drop their instances.
+	 */
+	private synchronized void startUserNameChecks() {
+		if (disposed || (userNameSchedule != null && !userNameSchedule.isCancelled())) {
+			return;
+		}
+		final UserNameCheck check = new UserNameCheck(this);
+		userNameSchedule = DrupalScheduler.schedule("user names " + getName(), refreshInterval, check);
+		check.schedule = userNameSchedule;
+	}
+	
+	/**
+	 * Rebuilds the filter of known user names if the users table changed.
+	 * @return True if the filter was rebuilt
+	 */
+	private boolean checkUserNames() {
+		if (notificationListener != null && notificationListener.isListening()) {
+			// Changes of users are pushed, see drupalDataChanged
+			return false;
+		}
+		return updateUserNameFilter();
+	}
+	
+	/**
+	 * Rebuilds the filter of known user names if it is in use and the users
+	 * table changed since it was built.
+	 * @return True if the filter was rebuilt
+	 */
+	private boolean updateUserNameFilter() {
+		if (userNameSchedule == null) {
+			// Not in use
+			return false;
+		}
+		final String fingerprint;
+		try {
+			fingerprint = queryUserNamesFingerprint(connector);
 		} catch (SQLException e) {
-			throw new IOException(e);
-		} finally {
-			connector.disconnect();
+			LOGGER.log(Level.FINE, "Could not check user names of Drupal instance " + getName(), e);
+			return false;
 		}
-		return Collections.unmodifiableSortedSet(roles);
+		if (fingerprint.equals(knownUserNames.getFingerprint())) {
+			return false;
+		}
+		rebuildUserNameFilter();
+		return true;
 	}
-
-	public SortedSet<GeoServerRole> getRoles() throws IOException {
-		TreeSet<GeoServerRole> foundRoles = new TreeSet<GeoServerRole>();
-		foundRoles.add(connector.addInstancePrefix(DRUPAL_ROOT_ROLE));
-		
-		ResultSet roles;
+	
+	/**
+	 * @param source Connector to query
+	 * @return Value that changes whenever users are added, removed or renamed
+	 * @throws SQLException
+	 */
+	private static String queryUserNamesFingerprint(DrupalDatabaseConnector source) throws SQLException {
+		return source.query("select count(*) || ':' || coalesce(sum(hashtext(uid || ':' || name)), 0) "
+				+ "as fingerprint from users", new ResultSetHandler<String>() {
+			public String handle(ResultSet rs) throws SQLException {
+				rs.next();
+				return rs.getString("fingerprint");
+			}
+		});
+	}
+	
+	/**
+	 * Reads all user names in chunks. Lookups go to Drupal if this fails.
+	 */
+	private void rebuildUserNameFilter() {
+		// Results for a connector replaced meanwhile are dropped
+		final DrupalDatabaseConnector connector = this.connector;
 		try {
 			connector.connect();
-			roles = connector.getResultSet("select name from role");
-			while (roles.next()) {
-				foundRoles.add(connector.addInstancePrefix(new GeoServerRole(
-						roles.getString("name"))));
+			try {
+				final String fingerprint = queryUserNamesFingerprint(connector);
+				// Fingerprint starts with the number of users
+				final int count = Integer.parseInt(fingerprint.substring(0, fingerprint.indexOf(':')));
+				// Leave room for users that are added until the next rebuild
+				final UserNameFilter filter = connector.stream("select name from users", USER_NAME_FETCH_SIZE,
+						new ResultSetHandler<UserNameFilter>() {
+							public UserNameFilter handle(ResultSet rs) throws SQLException {
+								final UserNameFilter filter = new UserNameFilter(count + count / 10 + 100,
+										USER_NAME_FALSE_POSITIVE_RATE);
+								while (rs.next()) {
+									filter.add(rs.getString("name"));
+								}
+								return filter;
+							}
+						});
+				if (connector != this.connector) {
+					return;
+				}
+				knownUserNames.setFilter(filter, fingerprint);
+				LOGGER.fine("Indexed " + count + " user names of Drupal instance " + getName());
+			} finally {
+				connector.disconnect();
 			}
 		} catch (SQLException e) {
-			throw new IOException(e);
-		} catch (NullPointerException e){
-			// Ignore missing connection here and return empty user list.
-			// Keeps service editable in GUI despite wrongly configured connections.
-			// Wrong configurations have been logged by failing connection acquire already.
-		} finally {
-			connector.disconnect();
+			if (connector == this.connector) {
+				knownUserNames.reset();
+			}
+			LOGGER.log(Level.WARNING, "Could not read user names of Drupal instance " + getName(), e);
+		}
+	}
+	
+	/**
+	 * Keeps the filter of known user names current without keeping the
+	 * instance from being garbage collected.
+	 */
+	private static class UserNameCheck implements DrupalScheduler.PeriodicTask {
+		private final WeakReference<DrupalUserGroupService> service;
+		private volatile DrupalScheduler.Schedule schedule;
+		
+		UserNameCheck(DrupalUserGroupService service) {
+			this.service = new WeakReference<DrupalUserGroupService>(service);
+		}
+		
+		public boolean run() {
+			final DrupalUserGroupService current = service.get();
+			if (current == null) {
+				if (schedule != null) {
+					schedule.cancel();
+				}
+				return false;
+			}
+			return current.checkUserNames();
 		}
-		return Collections.unmodifiableSortedSet(foundRoles);
+	}
+
+	/**
+	 * @param drupalRoles Names of Drupal roles assigned to user, may contain null
+	 * @param installing True during Drupal installation
+	 * @param root True for Drupal's root user
+	 * @return Prefixed GeoServer roles
+	 */
+	private SortedSet<GeoServerRole> buildRolesForUser(String[] drupalRoles,
+			boolean installing, boolean root) {
+		TreeSet<GeoServerRole> roles = new TreeSet<GeoServerRole>();
+		for (String drupalRole : drupalRoles) {
+			// Users without roles yield a single null from the outer join
+			if (drupalRole != null) {
+				roles.add(connector.getPrefixedRole(drupalRole));
+			}
+		}
+		
+		// Make all users workspace administrators during Drupal installation
+		if(installing){
+			roles.add(connector.addInstancePrefix(INSTALLATION_ADMINISTRATOR));
+		} else if(root){
+			roles.add(connector.addInstancePrefix(DRUPAL_ROOT_ROLE));
+		}
+		
+		// Assign all known users the permissions of being authenticated and anonymous.
+		roles.add(connector.getPrefixedRole(AUTHENTICATED_USER));
+		roles.add(connector.getPrefixedRole(ANONYMOUS_USER));
+		// Users with the same roles share a single set
+		return connector.internRoles(roles);
+	}
+
+	public SortedSet<GeoServerRole> getRoles() throws IOException {
+		return getSnapshot().getRoles();
 	}
 
 	/**
 	 * @return All users that have been granted the ‘Administer GeoServer’
 	 *         privilege in Drupal
-	 * @throws SQLException
+	 * @throws IOException
 	 */
 	public SortedSet<GeoServerRole> getWorkspaceAdministrators()
-			throws SQLException {
-		SortedSet<GeoServerRole> administrators;
-		
+			throws IOException {
+		return getSnapshot().getWorkspaceAdministrators();
+	}
+
+	/**
+	 * @return Milliseconds between checks of the Drupal database for changes
+	 */
+	public int getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	/**
+	 * @return Fingerprint of the Drupal data the current snapshot was built
+	 *         from
+	 * @throws IOException
+	 */
+	public String getPermissionFingerprint() throws IOException {
+		return getSnapshot().getFingerprint();
+	}
+
+	/**
+	 * Build read and write rules for all layers in the workspace used by a Drupal instance
+	 * @param layerIndex Layers of the catalog by workspace
+	 * @return Read and write access rules within workspace 
+	 * @throws IOException
+	 */
+	public HashSet<DataAccessRule> getLayerAccessRules(WorkspaceLayerIndex layerIndex) throws IOException {
+		LOGGER.info("Injected: getLayerAccessRules");
+		final DrupalSecuritySnapshot current = getSnapshot();
+		final HashSet<DataAccessRule> layerAccessRules = new HashSet<DataAccessRule>();
+		for(final LayerInfo layer: layerIndex.getLayers(this.getName())){
+			final Set<String> layerReadRoles = current.getReadLayerRoles().get(layer.getName());
+			if (layerReadRoles != null) {
+				LOGGER.fine("granting read permission for "+this.getName()+" "+layer.getName());
+				layerAccessRules.add(new DrupalDataAccessRule(this.getName(), layer.getName(), AccessMode.READ, layerReadRoles));
+			}
+			final Set<String> layerWriteRoles = current.getWriteLayerRoles().get(layer.getName());
+			if (layerWriteRoles != null) {
+				LOGGER.fine("granting write permission for "+this.getName()+" "+layer.getName());
+				layerAccessRules.add(new DrupalDataAccessRule(this.getName(), layer.getName(), AccessMode.WRITE, layerWriteRoles));
+			}
+		}
+		return layerAccessRules;
+	}
+
+	/**
+	 * Returns the current snapshot of roles and permissions without waiting
+	 * for Drupal. The snapshot is checked for changes in the background every
+	 * refresh interval. Only the very first call loads the snapshot
+	 * synchronously.
+	 * @return Roles and permissions of this instance
+	 * @throws IOException
+	 */
+	public DrupalSecuritySnapshot getSnapshot() throws IOException {
+		DrupalSecuritySnapshot current = snapshot.get();
+		if (current == null) {
+			synchronized (snapshot) {
+				current = snapshot.get();
+				if (current == null) {
+					try {
+						current = loadSnapshot();
+					} catch (SQLException e) {
+						throw new IOException(e);
+					}
+					snapshot.set(current);
+					persistSnapshot(current);
+				}
+			}
+		}
+		final DrupalScheduler.Schedule schedule = refreshSchedule;
+		if (schedule == null || schedule.isCancelled()) {
+			startRefreshing();
+		}
+		return current;
+	}
+
+	/**
+	 * @return Current snapshot or null if none has been loaded yet. Never
+	 *         waits for Drupal.
+	 */
+	public DrupalSecuritySnapshot getLoadedSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * Updates the snapshot in the background unless an update is already
+	 * running.
+	 * @param force True to rebuild even if Drupal's fingerprint is unchanged
+	 */
+	private void refreshSnapshot(boolean force) {
+		if (disposed) {
+			return;
+		}
+		if (force) {
+			snapshotForced = true;
+		}
+		if (snapshotRefreshing.get()) {
+			// Running update picks up the forced flag when it is done
+			return;
+		}
+		DrupalScheduler.execute(new Runnable() {
+			public void run() {
+				runRefresh();
+			}
+		});
+	}
+
+	/**
+	 * Updates the snapshot unless an update is already running.
+	 * @return True if the snapshot was replaced
+	 */
+	private boolean runRefresh() {
+		if (!snapshotRefreshing.compareAndSet(false, true)) {
+			return false;
+		}
+		boolean updated = false;
 		try {
-			connector.connect();
-			final ResultSet adminRoleNames = connector
-					.getResultSet("select role.name "
-							+ "from role_permission join role using(rid) "
-							+ "where permission='administer geoserver' and module='geoserver'");
-	
-			final TreeSet<GeoServerRole> foundRoles = new TreeSet<GeoServerRole>();
-			while (adminRoleNames.next()) {
-				final String drupalRole = adminRoleNames.getString("name");
-				if(drupalRole.equals(ANONYMOUS_USER)){
-					// Let everybody administer because Drupal settings grant this for everybody.
-					foundRoles.clear();
-					return Collections.unmodifiableSortedSet(foundRoles);
+			final boolean forced = snapshotForced;
+			snapshotForced = false;
+			updated = updateSnapshot(forced);
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Could not update roles and permissions of Drupal instance " + getName()
+					+ ". Keeping previous ones.", e);
+		} finally {
+			snapshotRefreshing.set(false);
+		}
+		if (snapshotForced) {
+			// Changes were announced during the update
+			refreshSnapshot(true);
+		}
+		return updated;
+	}
+
+	/**
+	 * Replaces the snapshot if Drupal's data changed. Informs listeners and
+	 * rule DAOs afterwards.
+	 * @param force True to rebuild even if Drupal's fingerprint is unchanged
+	 * @return True if the snapshot was replaced
+	 * @throws SQLException
+	 */
+	private boolean updateSnapshot(boolean force) throws SQLException {
+		final DrupalSecuritySnapshot current = snapshot.get();
+		if (!force && current != null) {
+			if (notificationListener != null && notificationListener.isListening()) {
+				// Changes are pushed, except for the installation state
+				if (current.isInstalling() == connector.isDrupalCurrentlyInstalling()) {
+					return false;
 				}
-				foundRoles.add(connector.addInstancePrefix(new GeoServerRole(
-						drupalRole)));
+			} else if (current.getFingerprint().equals(queryFingerprint())) {
+				return false;
 			}
-			
-			// Make a workspace administrator available during Drupal installation
-			if(connector.isDrupalCurrentlyInstalling()){
-				foundRoles.add(connector.addInstancePrefix(INSTALLATION_ADMINISTRATOR));
+		}
+		final DrupalSecuritySnapshot updated = loadSnapshot();
+		snapshot.set(updated);
+		LOGGER.info("Updated roles and permissions of Drupal instance " + getName());
+		persistSnapshot(updated);
+		// Assignments of roles to users and users themselves might have changed as well
+		invalidateRoles();
+		updateUserNameFilter();
+		fireUsersAndGroupsChanged();
+		for (DrupalDataChangeListener dao : GeoServerExtensions.extensions(DrupalDataChangeListener.class)) {
+			dao.drupalDataChanged(null);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a snapshot to the data directory in the background.
+	 * @param persisted
+	 */
+	private void persistSnapshot(final DrupalSecuritySnapshot persisted) {
+		final DrupalSnapshotStore store = DrupalSnapshotStore.get();
+		if (store == null) {
+			return;
+		}
+		final String name = getName();
+		final String source = snapshotSource;
+		DrupalScheduler.execute(new Runnable() {
+			public void run() {
+				try {
+					store.save(name, source, persisted);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Cannot persist roles and permissions of Drupal instance " + name, e);
+				}
 			}
-			
-			// Add Drupal root user
-			foundRoles.add(connector.addInstancePrefix(DRUPAL_ROOT_ROLE));
-	
-			// Add global admin as admin since GeoServer assumes everybody is admin
-			// when no admin was set
-			foundRoles.add(GeoServerRole.ADMIN_ROLE);
-	
-			administrators = Collections.unmodifiableSortedSet(foundRoles);
+		});
+	}
+
+	/**
+	 * Reads all roles and permissions from Drupal. All queries run in one
+	 * transaction so that the snapshot is consistent.
+	 * @return New snapshot
+	 * @throws SQLException
+	 */
+	private DrupalSecuritySnapshot loadSnapshot() throws SQLException {
+		final long createdAt = System.currentTimeMillis();
+		try {
+			connector.connectReadOnly();
+			// Taken first so that changes while loading are detected later on
+			final String fingerprint = queryFingerprint();
+			final boolean installing = connector.isDrupalCurrentlyInstalling();
+			final HashMap<String, Set<String>> readLayerRoles = new HashMap<String, Set<String>>();
+			final HashMap<String, Set<String>> writeLayerRoles = new HashMap<String, Set<String>>();
+			loadLayerRoles(readLayerRoles, writeLayerRoles);
+			return new DrupalSecuritySnapshot(fingerprint, installing, createdAt,
+					loadRoles(), loadWorkspaceAdministrators(installing),
+					readLayerRoles, writeLayerRoles, loadUserNamesByRole());
 		} finally {
 			connector.disconnect();
 		}
-		return administrators;
 	}
 
 	/**
-	 * Build read and write rules for all layers in the workspace used by a Drupal instance
-	 * @param rawCatalog
-	 * @return Read and write access rules within workspace 
+	 * @return Users by prefixed role name
 	 * @throws SQLException
 	 */
-	public HashSet<DataAccessRule> getLayerAccessRules(Catalog rawCatalog) throws SQLException {
-		LOGGER.info("Injected: getLayerAccessRules");
-		HashSet<DataAccessRule> layerAccessRules = new HashSet<DataAccessRule>();
-		
-		try {
-			LOGGER.info("dumping catalog");
-			connector.connect();
-			for(LayerInfo layer: rawCatalog.getLayers()){
-				String workspaceName =layer.getResource().getStore().getWorkspace().getName();
-				LOGGER.info("workspacename "+workspaceName+"="+this.getName());
-				if(workspaceName.equals(this.getName())){
-					LOGGER.info(layer.getResource().getStore().getWorkspace().getName());
-					LOGGER.info(layer.getName());
-					String layerPermissionQuery = "select array_agg(role.name) as roles " +
-							"from role " +
-							"join role_permission using(rid) " +
-							"where permission=? and module='geoserver' " +
-							"having array_agg(role.name) is not null";
-					
-					ResultSet viewPermissions = connector.getResultSet(layerPermissionQuery, "read layer "+layer.getName());
-					LOGGER.info("granting read permission for "+this.getName()+" "+layer.getName());
-					while(viewPermissions.next()){
-						layerAccessRules.add(buildDataAccessRule(layer, (String[]) viewPermissions.getArray("roles").getArray(), AccessMode.READ));
-					}
-					
-					ResultSet createEditDeletePermissions = connector.getResultSet(layerPermissionQuery, "write layer "+layer.getName());
-					LOGGER.info("granting write permission for "+this.getName()+" "+layer.getName());
-					while(createEditDeletePermissions.next()){
-						layerAccessRules.add(buildDataAccessRule(layer, (String[]) createEditDeletePermissions.getArray("roles").getArray(), AccessMode.WRITE));
+	private Map<String, SortedSet<String>> loadUserNamesByRole() throws SQLException {
+		final HashMap<String, SortedSet<String>> userNamesByRole = new HashMap<String, SortedSet<String>>();
+		connector.query(
+				"select role.name as role, array_agg(users.name) as users " +
+				"from users join users_roles using(uid) join role using(rid) group by role.name",
+				new ResultSetHandler<Void>() {
+					public Void handle(ResultSet rs) throws SQLException {
+						while (rs.next()) {
+							final TreeSet<String> userNames = new TreeSet<String>();
+							for (String userName : (String[]) rs.getArray("users").getArray()) {
+								userNames.add(connector.addInstancePrefix(userName));
+							}
+							userNamesByRole.put(connector.getPrefixedRole(
+									rs.getString("role")).getAuthority(),
+									Collections.unmodifiableSortedSet(userNames));
+						}
+						return null;
 					}
+				});
+		
+		// id=1 means administrative privileges in Drupal
+		connector.query("select name from users where uid=1", new ResultSetHandler<Void>() {
+			public Void handle(ResultSet rs) throws SQLException {
+				if(rs.next()){
+					final TreeSet<String> userNames = new TreeSet<String>();
+					userNames.add(connector.addInstancePrefix(rs.getString("name")));
+					userNamesByRole.put(connector.addInstancePrefix(DRUPAL_ROOT_ROLE).getAuthority(),
+							Collections.unmodifiableSortedSet(userNames));
 				}
+				return null;
 			}
-		} finally {
-			connector.disconnect();
+		});
+		return userNamesByRole;
+	}
+
+	/**
+	 * @return All roles of this instance
+	 * @throws SQLException
+	 */
+	private SortedSet<GeoServerRole> loadRoles() throws SQLException {
+		final TreeSet<GeoServerRole> foundRoles = new TreeSet<GeoServerRole>();
+		foundRoles.add(connector.addInstancePrefix(DRUPAL_ROOT_ROLE));
+		
+		connector.query("select name from role", new ResultSetHandler<Void>() {
+			public Void handle(ResultSet roles) throws SQLException {
+				while (roles.next()) {
+					foundRoles.add(connector.getPrefixedRole(roles.getString("name")));
+				}
+				return null;
+			}
+		});
+		return foundRoles;
+	}
+
+	/**
+	 * @param installing True during Drupal installation
+	 * @return All users that have been granted the ‘Administer GeoServer’
+	 *         privilege in Drupal
+	 * @throws SQLException
+	 */
+	private SortedSet<GeoServerRole> loadWorkspaceAdministrators(boolean installing)
+			throws SQLException {
+		final TreeSet<GeoServerRole> foundRoles = new TreeSet<GeoServerRole>();
+		final boolean everybodyAdministers = connector.query("select role.name "
+						+ "from role_permission join role using(rid) "
+						+ "where permission='administer geoserver' and module='geoserver'",
+				new ResultSetHandler<Boolean>() {
+					public Boolean handle(ResultSet adminRoleNames) throws SQLException {
+						while (adminRoleNames.next()) {
+							final String drupalRole = adminRoleNames.getString("name");
+							if(drupalRole.equals(ANONYMOUS_USER)){
+								return true;
+							}
+							foundRoles.add(connector.getPrefixedRole(drupalRole));
+						}
+						return false;
+					}
+				});
+		if(everybodyAdministers){
+			// Let everybody administer because Drupal settings grant this for everybody.
+			foundRoles.clear();
+			return foundRoles;
 		}
+		
+		// Make a workspace administrator available during Drupal installation
+		if(installing){
+			foundRoles.add(connector.addInstancePrefix(INSTALLATION_ADMINISTRATOR));
+		}
+		
+		// Add Drupal root user
+		foundRoles.add(connector.addInstancePrefix(DRUPAL_ROOT_ROLE));
 
-		return layerAccessRules;
+		// Add global admin as admin since GeoServer assumes everybody is admin
+		// when no admin was set
+		foundRoles.add(GeoServerRole.ADMIN_ROLE);
+		return foundRoles;
+	}
+
+	/**
+	 * Summarizes all data that roles and access rules are derived from. The
+	 * summary is cheap to compute compared to loading the data itself.
+	 * 
+	 * @return Value that changes whenever roles, role assignments,
+	 *         permissions, users or the installation state change
+	 * @throws SQLException
+	 */
+	private String queryFingerprint() throws SQLException {
+		final String fingerprint = connector.query("select " +
+				"(select count(*) || ':' || coalesce(sum(hashtext(rid || ':' || name)), 0) from role) || '|' || " +
+				"(select count(*) || ':' || coalesce(sum(hashtext(uid || ':' || rid)), 0) from users_roles) || '|' || " +
+				"(select count(*) || ':' || coalesce(sum(hashtext(rid || ':' || module || ':' || permission)), 0) from role_permission) || '|' || " +
+				"(select count(*) || ':' || coalesce(sum(hashtext(uid || ':' || name || ':' || status)), 0) from users) " +
+				"as fingerprint",
+				new ResultSetHandler<String>() {
+					public String handle(ResultSet rs) throws SQLException {
+						rs.next();
+						return rs.getString("fingerprint");
+					}
+				});
+		return fingerprint + "|" + connector.isDrupalCurrentlyInstalling();
 	}
 
 	/**
-	 * Builds an access rule and adds instance prefix to all roles
-	 * @param layer GeoServer layer
+	 * Reads the roles that may read or write single layers. All permissions
+	 * are loaded at once.
+	 * @param readLayerRoles Receives prefixed role names by layer name
+	 * @param writeLayerRoles Receives prefixed role names by layer name
+	 * @throws SQLException
+	 */
+	private void loadLayerRoles(final Map<String, Set<String>> readLayerRoles,
+			final Map<String, Set<String>> writeLayerRoles) throws SQLException {
+		connector.query("select permission, array_agg(role.name) as roles " +
+				"from role " +
+				"join role_permission using(rid) " +
+				"where module='geoserver' " +
+				"and (permission like 'read layer %' or permission like 'write layer %') " +
+				"group by permission",
+				new ResultSetHandler<Void>() {
+					public Void handle(ResultSet layerPermissions) throws SQLException {
+						while (layerPermissions.next()) {
+							final String permission = layerPermissions.getString("permission");
+							final String[] roles = (String[]) layerPermissions.getArray("roles").getArray();
+							if (permission.startsWith(READ_LAYER_PERMISSION)) {
+								readLayerRoles.put(permission.substring(READ_LAYER_PERMISSION.length()), buildRuleRoles(roles));
+							} else if (permission.startsWith(WRITE_LAYER_PERMISSION)) {
+								writeLayerRoles.put(permission.substring(WRITE_LAYER_PERMISSION.length()), buildRuleRoles(roles));
+							}
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Adds instance prefix to all roles of an access rule
 	 * @param roles Drupal role names
-	 * @param mode
-	 * @return
+	 * @return Role names for an access rule, shared with other layers that
+	 *         grant the same roles
 	 */
-	private DataAccessRule buildDataAccessRule(final LayerInfo layer, final String[] roles,
-			final AccessMode mode) {
+	private Set<String> buildRuleRoles(final String[] roles) {
 		final HashSet<String> roleNames = new HashSet<String>();
 		if(Arrays.asList(roles).contains(ANONYMOUS_USER)){
 			// All access for everybody even not logged in users.
 			roleNames.add("*");
 		} else {
 			for (final String roleName : roles) {
-				LOGGER.info(" to "+connector.addInstancePrefix(roleName));
-				roleNames.add(connector.addInstancePrefix(roleName));
+				roleNames.add(connector.getPrefixedRole(roleName).getAuthority());
 			}
 		}
-		return new DataAccessRule(this.getName(), layer.getName(), mode, roleNames);
+		return connector.internRoleNames(roleNames);
 	}
 	
 	/**
@@ -462,13 +1200,11 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 	 */
 	private SortedSet<GeoServerUser> queryUserProperty(String propname, PropertyQueryOperator propop) 
 				throws IOException {
-		TreeSet<GeoServerUser> users = new TreeSet<GeoServerUser>();
 		String columnName = getSQLPropertyColumn(propname);
 
 		if (columnName != null) {
 			try {
 				LOGGER.info("quering catalog for property " + propname);
-				connector.connect();
 				
 				String query = "select name from users where " + columnName + " ";
 				if (propop==PropertyQueryOperator.HAS_PROPERTY) {
@@ -481,21 +1217,12 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 					throw new IOException("Unsupported PropertyQueryOperator: " + propop.name());
 				}
 				
-				ResultSet rs = connector.getResultSet(query);
-				while (rs.next()) {
-					users.add(new GeoServerUser(connector.addInstancePrefix(rs
-							.getString("name"))));
-					HashSet<GrantedAuthority> roleset = new HashSet<GrantedAuthority>();
-					roleset.add(new GeoServerRole("schreiber")); // TODO: why is this needed. does the set just need at least one role
-					users.last().setAuthorities(roleset);
-				}
+				return connector.query(query, userListHandler);
 			} catch (SQLException e) {
 				throw new IOException(e);
-			} finally {
-				connector.disconnect();
 			}
 		}
-		return Collections.unmodifiableSortedSet(users);
+		return Collections.unmodifiableSortedSet(new TreeSet<GeoServerUser>());
 	}
 	
 	/**
@@ -508,30 +1235,19 @@ public class DrupalUserGroupService extends AbstractGeoServerSecurityService
 	 */
 	private SortedSet<GeoServerUser> queryUserPropertyByMatchingValue(String propname, String propvalue) 
 			throws IOException {
-		TreeSet<GeoServerUser> users = new TreeSet<GeoServerUser>();
 		String columnName = getSQLPropertyColumn(propname);
 
 		if (columnName != null) {
 			try {
 				LOGGER.info("quering catalog for property " + propname + " and value " + propvalue);
-				connector.connect();
 				
 				String query = "select name from users where " + columnName + " is not distinct from ?";
-				ResultSet rs = connector.getResultSet(query, propvalue);
-				while (rs.next()) {
-					users.add(new GeoServerUser(connector.addInstancePrefix(rs
-							.getString("name"))));
-					HashSet<GrantedAuthority> roleset = new HashSet<GrantedAuthority>();
-					roleset.add(new GeoServerRole("schreiber")); // TODO: why is this needed. does the set just need at least one role
-					users.last().setAuthorities(roleset);
-				}		
+				return connector.query(query, userListHandler, propvalue);
 			} catch (SQLException e) {
 				throw new IOException(e);
-			} finally {
-				connector.disconnect();
 			}
 		}
-		return Collections.unmodifiableSortedSet(users);
+		return Collections.unmodifiableSortedSet(new TreeSet<GeoServerUser>());
 	}
 	
 	/**
@@ -0,0 +1,87 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe map of limited size whose entries expire after a fixed time.
+ * The least recently used entry is evicted when the cache is full. A cache
+ * with a size or time to live of 0 does not keep anything.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ExpiringCache<K, V> {
+	private final int maxSize;
+	private final long timeToLive;
+
+	private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+	/**
+	 * @param maxSize
+	 *            Number of entries kept at most
+	 * @param timeToLive
+	 *            Milliseconds an entry is valid after it has been put
+	 */
+	public ExpiringCache(final int maxSize, long timeToLive) {
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = -2297206372536346637L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 && timeToLive > 0;
+	}
+
+	/**
+	 * @param key
+	 * @return Cached value or null if there is none or it expired
+	 */
+	public synchronized V get(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (isEnabled()) {
+			entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis()
+					+ timeToLive));
+		}
+	}
+
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class CacheEntry<V> {
+		private final V value;
+		private final long expires;
+
+		private CacheEntry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
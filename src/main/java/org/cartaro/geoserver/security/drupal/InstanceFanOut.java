@@ -0,0 +1,199 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Queries all Drupal instances concurrently. Each instance is given its own
+ * deadline. Instances that fail or miss their deadline are answered with the
+ * last result they delivered for the same operation. Failing that, they are
+ * either left out or fail the whole call, depending on whether access may
+ * be granted by their missing data.
+ */
+public class InstanceFanOut {
+	protected static Logger LOGGER = Logging
+			.getLogger("org.geoserver.security");
+
+	/**
+	 * Work done for a single Drupal instance.
+	 *
+	 * @param <T>
+	 *            Result of a single instance
+	 */
+	public interface InstanceCall<T> {
+		T call(DrupalUserGroupService service) throws Exception;
+	}
+
+	/**
+	 * Last results per instance name and operation
+	 */
+	private final ConcurrentHashMap<String, Object> lastKnownGood = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * @param operation
+	 *            Identifies the call and its parameters so that results can be
+	 *            reused if an instance does not answer in time
+	 * @param services
+	 * @param call
+	 * @return Results of all instances in order of services
+	 * @throws IOException
+	 *             If an instance did not deliver a result and none was known
+	 *             from earlier calls
+	 */
+	public <T> List<T> collect(String operation,
+			List<DrupalUserGroupService> services, InstanceCall<T> call)
+			throws IOException {
+		return new ArrayList<T>(gather(operation, services, call, true)
+				.values());
+	}
+
+	/**
+	 * Like {@link #collect(String, List, InstanceCall)}, but instances that
+	 * neither deliver a result nor have one from earlier calls are left out.
+	 * Only for data whose absence does not grant access.
+	 *
+	 * @param operation
+	 * @param services
+	 * @param call
+	 * @return Results by name of instance in order of services
+	 * @throws IOException
+	 *             If no instance delivered a result
+	 */
+	public <T> Map<String, T> collectAvailable(String operation,
+			List<DrupalUserGroupService> services, InstanceCall<T> call)
+			throws IOException {
+		final Map<String, T> results = gather(operation, services, call,
+				false);
+		if (results.isEmpty() && !services.isEmpty()) {
+			throw new IOException("No Drupal instance answered " + operation);
+		}
+		return results;
+	}
+
+	/**
+	 * @param required
+	 *            Whether every instance must deliver a result
+	 * @return Results by name of instance in order of services
+	 * @throws IOException
+	 */
+	private <T> Map<String, T> gather(String operation,
+			List<DrupalUserGroupService> services, final InstanceCall<T> call,
+			boolean required) throws IOException {
+		final long start = System.currentTimeMillis();
+		final List<Future<T>> futures = new ArrayList<Future<T>>(
+				services.size());
+		for (final DrupalUserGroupService service : services) {
+			futures.add(DrupalScheduler.getQueryExecutor().submit(
+					new Callable<T>() {
+						public T call() throws Exception {
+							return call.call(service);
+						}
+					}));
+		}
+
+		final LinkedHashMap<String, T> results = new LinkedHashMap<String, T>();
+		for (int i = 0; i < services.size(); i++) {
+			final DrupalUserGroupService service = services.get(i);
+			final Future<T> future = futures.get(i);
+			final String key = service.getName() + ":" + operation;
+			final long remaining = start + service.getQueryTimeout()
+					- System.currentTimeMillis();
+			try {
+				T result = future.get(Math.max(0, remaining),
+						TimeUnit.MILLISECONDS);
+				if (result != null) {
+					lastKnownGood.put(key, result);
+				}
+				results.put(service.getName(), result);
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				LOGGER.warning("Drupal instance " + service.getName()
+						+ " did not answer " + operation + " within "
+						+ service.getQueryTimeout() + "ms.");
+				addFallback(results, service, key, e, required);
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Drupal instance " + service.getName()
+						+ " failed to answer " + operation, e.getCause());
+				addFallback(results, service, key, e.getCause(), required);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Adds the last result delivered for key or leaves the instance out
+	 * unless it is required.
+	 *
+	 * @throws IOException
+	 *             If a required instance has no such result
+	 */
+	private <T> void addFallback(Map<String, T> results,
+			DrupalUserGroupService service, String key, Throwable cause,
+			boolean required) throws IOException {
+		try {
+			results.put(service.getName(), this.<T> fallback(key, cause));
+		} catch (IOException e) {
+			if (required) {
+				throw e;
+			}
+			LOGGER.warning("Leaving out Drupal instance " + service.getName()
+					+ " since no data is available for " + key);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param cause
+	 * @return Last result delivered for key
+	 * @throws IOException
+	 *             If there is no such result
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T fallback(String key, Throwable cause) throws IOException {
+		final T result = (T) lastKnownGood.get(key);
+		if (result == null) {
+			// Fail rather than granting access by missing rules
+			throw new IOException("No data available for " + key, cause);
+		}
+		LOGGER.info("Serving last known data for " + key);
+		return result;
+	}
+
+	/**
+	 * Forgets results of instances that no longer exist.
+	 *
+	 * @param services
+	 *            Instances that are still configured
+	 */
+	public void retain(List<DrupalUserGroupService> services) {
+		final ArrayList<String> prefixes = new ArrayList<String>();
+		for (DrupalUserGroupService service : services) {
+			prefixes.add(service.getName() + ":");
+		}
+		for (String key : lastKnownGood.keySet()) {
+			boolean retained = false;
+			for (String prefix : prefixes) {
+				retained |= key.startsWith(prefix);
+			}
+			if (!retained) {
+				lastKnownGood.remove(key);
+			}
+		}
+	}
+}
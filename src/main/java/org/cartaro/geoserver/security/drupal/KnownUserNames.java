@@ -0,0 +1,118 @@
+package org.cartaro.geoserver.security.drupal;
+
+/**
+ * User names of a Drupal instance that can be told apart without asking
+ * Drupal. Combines a filter of all names, which misses users added after it
+ * was built, with the names Drupal recently reported as unknown.
+ */
+public class KnownUserNames {
+	private final ExpiringCache<String, Boolean> unknownNames;
+
+	/**
+	 * Unprefixed names of all users in Drupal, null until built or if
+	 * building failed
+	 */
+	private volatile UserNameFilter filter;
+
+	/**
+	 * Summary of the users table the filter was built from
+	 */
+	private volatile String fingerprint;
+
+	/**
+	 * @param unknownCacheSize
+	 *            Number of unknown names kept at most
+	 * @param unknownTimeToLive
+	 *            Milliseconds a name is remembered as unknown
+	 */
+	public KnownUserNames(int unknownCacheSize, long unknownTimeToLive) {
+		unknownNames = new ExpiringCache<String, Boolean>(unknownCacheSize,
+				unknownTimeToLive);
+	}
+
+	/**
+	 * @param filter
+	 *            All user names at the time fingerprint was read
+	 * @param fingerprint
+	 *            Summary of the users table
+	 */
+	public void setFilter(UserNameFilter filter, String fingerprint) {
+		this.filter = filter;
+		this.fingerprint = fingerprint;
+		unknownNames.clear();
+	}
+
+	/**
+	 * Forgets the filter and all unknown names.
+	 */
+	public void reset() {
+		filter = null;
+		fingerprint = null;
+		unknownNames.clear();
+	}
+
+	/**
+	 * @return True if the filter has been built
+	 */
+	public boolean hasFilter() {
+		return filter != null;
+	}
+
+	/**
+	 * @return Summary of the users table the filter was built from or null
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @param name
+	 *            Name Drupal does not know
+	 */
+	public void setUnknown(String name) {
+		unknownNames.put(name, Boolean.TRUE);
+	}
+
+	/**
+	 * Forgets the names Drupal did not know, e.g. after users changed.
+	 */
+	public void clearUnknown() {
+		unknownNames.clear();
+	}
+
+	/**
+	 * For lookups that may miss users added since the filter was built.
+	 *
+	 * @param name
+	 * @return True if Drupal recently did not know name or the filter does
+	 *         not contain it
+	 */
+	public boolean isUnknown(String name) {
+		if (isRecentlyUnknown(name)) {
+			return true;
+		}
+		final UserNameFilter current = filter;
+		return current != null && !current.mightContain(name);
+	}
+
+	/**
+	 * For authentication, which must not refuse users who registered after
+	 * the filter was built.
+	 *
+	 * @param name
+	 * @return True if Drupal recently did not know name
+	 */
+	public boolean isRecentlyUnknown(String name) {
+		return unknownNames.get(name) != null;
+	}
+
+	/**
+	 * @param name
+	 *            Name Drupal knows
+	 * @return True if the filter is out of date since it lacks name
+	 */
+	public boolean isMissing(String name) {
+		final UserNameFilter current = filter;
+		return current != null && !current.mightContain(name);
+	}
+}
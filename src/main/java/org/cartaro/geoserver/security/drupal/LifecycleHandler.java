@@ -22,7 +22,8 @@ public class LifecycleHandler implements GeoServerLifecycleHandler {
 	}
 
 	public void onDispose() {
-		// Empty as no special handling of disposal needed.
+		// Stop periodic checks of all Drupal instances
+		DrupalScheduler.shutdown();
 	}
 
 	@Override
@@ -57,5 +58,10 @@ public class LifecycleHandler implements GeoServerLifecycleHandler {
 			LOGGER.log(Level.WARNING, "Failed to load security configuration.",
 					e1);
 		}
+		// Drupal instances might have been added, removed or reconfigured
+		if (securityManager.getActiveRoleService() instanceof DrupalRoleService) {
+			((DrupalRoleService) securityManager.getActiveRoleService())
+					.reloadUserGroupServices();
+		}
 	}
 }
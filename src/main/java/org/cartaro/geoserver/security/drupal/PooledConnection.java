@@ -0,0 +1,114 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Connection managed by {@link DrupalConnectionPool} that keeps its prepared
+ * statements for reuse. Statements are keyed by their SQL so that each query
+ * is parsed and planned only once per connection.
+ */
+public class PooledConnection {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	/**
+	 * Number of statements kept open per connection. The module uses a couple
+	 * of dozen different queries only.
+	 */
+	private static final int STATEMENT_CACHE_SIZE = 32;
+
+	private final Connection connection;
+
+	/**
+	 * Prepared statements in order of their last use.
+	 */
+	private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 6201858306473377473L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, PreparedStatement> eldest) {
+			if (size() > STATEMENT_CACHE_SIZE) {
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Time in milliseconds when the connection was returned to its pool.
+	 */
+	long idleSince;
+
+	PooledConnection(Connection connection) {
+		this.connection = connection;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Only one thread may use a pooled connection at a time, thus statements
+	 * are not shared concurrently.
+	 *
+	 * @param sql
+	 * @return Cached statement for sql or a newly prepared one
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * Drops a statement from the cache, e.g. because it failed and might be
+	 * in an unusable state.
+	 *
+	 * @param sql
+	 */
+	public void discard(String sql) {
+		PreparedStatement statement = statements.remove(sql);
+		if (statement != null) {
+			closeQuietly(statement);
+		}
+	}
+
+	public boolean isClosed() throws SQLException {
+		return connection.isClosed();
+	}
+
+	/**
+	 * Closes all cached statements and the connection itself.
+	 *
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException {
+		for (PreparedStatement statement : statements.values()) {
+			closeQuietly(statement);
+		}
+		statements.clear();
+		connection.close();
+	}
+
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Could not close prepared statement.", e);
+		}
+	}
+}
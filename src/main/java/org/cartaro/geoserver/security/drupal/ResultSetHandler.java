@@ -0,0 +1,16 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the result of a query run by
+ * {@link DrupalDatabaseConnector#query(String, ResultSetHandler, Object...)}.
+ * The result set is closed once the handler returns.
+ *
+ * @param <T>
+ *            Type of the value extracted from the result set
+ */
+public interface ResultSetHandler<T> {
+	T handle(ResultSet resultSet) throws SQLException;
+}
@@ -0,0 +1,94 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geoserver.security.impl.GeoServerRole;
+
+/**
+ * Canonical roles and role name sets of a Drupal instance. Snapshots, users
+ * and access rules share these instances instead of holding copies of their
+ * own. Returned roles must not be modified, in particular no user name or
+ * properties may be set on them.
+ */
+public class RoleInterner {
+	/**
+	 * Number of distinct sets after which a table is started over. Protects
+	 * against unbounded growth if roles or permissions change a lot.
+	 */
+	private static final int MAX_SETS = 10000;
+
+	private final ConcurrentHashMap<String, GeoServerRole> roles = new ConcurrentHashMap<String, GeoServerRole>();
+	private final ConcurrentHashMap<Set<String>, Set<String>> roleSets = new ConcurrentHashMap<Set<String>, Set<String>>();
+	private final ConcurrentHashMap<Set<GeoServerRole>, SortedSet<GeoServerRole>> userRoleSets = new ConcurrentHashMap<Set<GeoServerRole>, SortedSet<GeoServerRole>>();
+
+	/**
+	 * @param authority
+	 *            Role name, usually prefixed
+	 * @return Shared role with that name
+	 */
+	public GeoServerRole getRole(String authority) {
+		GeoServerRole role = roles.get(authority);
+		if (role == null) {
+			final GeoServerRole created = new GeoServerRole(authority);
+			role = roles.putIfAbsent(authority, created);
+			if (role == null) {
+				role = created;
+			}
+		}
+		return role;
+	}
+
+	/**
+	 * @param roleNames
+	 *            Role names that are not modified afterwards
+	 * @return Shared unmodifiable set equal to roleNames
+	 */
+	public Set<String> getRoleNames(Set<String> roleNames) {
+		Set<String> shared = roleSets.get(roleNames);
+		if (shared == null) {
+			if (roleSets.size() >= MAX_SETS) {
+				roleSets.clear();
+			}
+			final Set<String> created = Collections
+					.unmodifiableSet(new HashSet<String>(roleNames));
+			shared = roleSets.putIfAbsent(created, created);
+			if (shared == null) {
+				shared = created;
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * @param userRoles
+	 *            Roles of a user that are not modified afterwards
+	 * @return Shared unmodifiable set equal to userRoles
+	 */
+	public SortedSet<GeoServerRole> getRoles(SortedSet<GeoServerRole> userRoles) {
+		SortedSet<GeoServerRole> shared = userRoleSets.get(userRoles);
+		if (shared == null) {
+			if (userRoleSets.size() >= MAX_SETS) {
+				userRoleSets.clear();
+			}
+			final SortedSet<GeoServerRole> created = Collections
+					.unmodifiableSortedSet(new TreeSet<GeoServerRole>(userRoles));
+			shared = userRoleSets.putIfAbsent(created, created);
+			if (shared == null) {
+				shared = created;
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * @return Number of shared role name sets
+	 */
+	public int getRoleNamesCount() {
+		return roleSets.size();
+	}
+}
@@ -0,0 +1,66 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller runs the load
+ * while callers arriving meanwhile wait for it and share its result or
+ * failure. Results are not kept once the load completed.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SingleFlight<K, V> {
+	private final ConcurrentHashMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * @param key
+	 * @param loader
+	 *            Run in the calling thread unless a load of key is in flight
+	 * @return Value loaded by this or a concurrent call
+	 * @throws IOException
+	 *             If the load failed. Runtime exceptions are passed on as
+	 *             they are.
+	 */
+	public V execute(K key, Callable<V> loader) throws IOException {
+		final FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> flight = flights.putIfAbsent(key, task);
+		if (flight == null) {
+			flight = task;
+			try {
+				task.run();
+			} finally {
+				flights.remove(key, task);
+			}
+		}
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return Number of loads in flight
+	 */
+	public int size() {
+		return flights.size();
+	}
+}
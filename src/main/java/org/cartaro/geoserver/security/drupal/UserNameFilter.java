@@ -0,0 +1,73 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.BitSet;
+
+/**
+ * Bloom filter of user names. A name that has not been added is reported as
+ * absent with high probability. Names that have been added are never
+ * reported as absent. Not thread-safe while names are added.
+ */
+public class UserNameFilter {
+	private final BitSet bits;
+	private final int size;
+	private final int hashes;
+
+	/**
+	 * @param expectedNames
+	 *            Number of names that will be added
+	 * @param falsePositiveRate
+	 *            Probability that an absent name is reported as present
+	 */
+	public UserNameFilter(int expectedNames, double falsePositiveRate) {
+		final int names = Math.max(1, expectedNames);
+		final double ln2 = Math.log(2);
+		size = (int) Math.max(64, Math.ceil(-names * Math.log(falsePositiveRate)
+				/ (ln2 * ln2)));
+		hashes = (int) Math.max(1, Math.round((double) size / names * ln2));
+		bits = new BitSet(size);
+	}
+
+	public void add(String name) {
+		final int first = name.hashCode();
+		final int second = secondHash(name);
+		for (int i = 0; i < hashes; i++) {
+			bits.set(index(first, second, i));
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return False if name has definitely not been added
+	 */
+	public boolean mightContain(String name) {
+		final int first = name.hashCode();
+		final int second = secondHash(name);
+		for (int i = 0; i < hashes; i++) {
+			if (!bits.get(index(first, second, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Combines two hashes to simulate any number of independent ones
+	 */
+	private int index(int first, int second, int i) {
+		final int combined = first + i * second;
+		return (combined & Integer.MAX_VALUE) % size;
+	}
+
+	/**
+	 * FNV-1a over the name's characters, independent of String.hashCode
+	 */
+	private static int secondHash(String name) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x01000193;
+		}
+		// Odd so that all indexes differ for small sizes
+		return hash | 1;
+	}
+}
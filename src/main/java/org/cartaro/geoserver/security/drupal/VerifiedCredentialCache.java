@@ -0,0 +1,126 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Remembers credentials that have been verified recently so that repeated
+ * logins skip Drupal's expensive password stretching. Passwords are never
+ * kept. Instead a keyed digest of password and stored hash is compared. The
+ * key is random and lives in memory only.
+ */
+public class VerifiedCredentialCache {
+	private static final String DIGEST_ALGORITHM = "HmacSHA256";
+
+	private final ExpiringCache<String, VerifiedCredential> verified;
+
+	private final SecretKeySpec key;
+
+	/**
+	 * @param maxSize
+	 *            Number of users whose credentials are remembered at most
+	 * @param timeToLive
+	 *            Milliseconds a verification is trusted
+	 */
+	public VerifiedCredentialCache(int maxSize, long timeToLive) {
+		verified = new ExpiringCache<String, VerifiedCredential>(maxSize,
+				timeToLive);
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		key = new SecretKeySpec(secret, DIGEST_ALGORITHM);
+	}
+
+	/**
+	 * @param userName
+	 *            Drupal user name
+	 * @param password
+	 *            Password as submitted
+	 * @param storedHash
+	 *            Current hash in Drupal's table users
+	 * @return True if the same password has been verified against the same
+	 *         hash recently
+	 */
+	public boolean isVerified(String userName, String password,
+			String storedHash) {
+		if (!verified.isEnabled()) {
+			return false;
+		}
+		VerifiedCredential credential = verified.get(userName);
+		if (credential == null) {
+			return false;
+		}
+		if (!credential.storedHash.equals(storedHash)) {
+			// Password got changed in Drupal
+			verified.remove(userName);
+			return false;
+		}
+		return MessageDigest.isEqual(credential.digest,
+				digest(password, storedHash));
+	}
+
+	/**
+	 * Remembers a successful verification.
+	 *
+	 * @param userName
+	 * @param password
+	 * @param storedHash
+	 */
+	public void setVerified(String userName, String password, String storedHash) {
+		if (verified.isEnabled()) {
+			verified.put(userName, new VerifiedCredential(storedHash, digest(
+					password, storedHash)));
+		}
+	}
+
+	/**
+	 * @param userName
+	 * @param password
+	 * @param storedHash
+	 * @return Key that identifies a verification without revealing the
+	 *         password
+	 */
+	public String getVerificationKey(String userName, String password,
+			String storedHash) {
+		return userName + ":" + new String(Hex.encodeHex(digest(password, storedHash)));
+	}
+
+	public void invalidate(String userName) {
+		verified.remove(userName);
+	}
+
+	public void invalidateAll() {
+		verified.clear();
+	}
+
+	private byte[] digest(String password, String storedHash) {
+		try {
+			Mac mac = Mac.getInstance(DIGEST_ALGORITHM);
+			mac.init(key);
+			mac.update(password.getBytes("UTF-8"));
+			// Separate password and hash to keep the input unambiguous
+			mac.update((byte) 0);
+			return mac.doFinal(storedHash.getBytes("UTF-8"));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class VerifiedCredential {
+		private final String storedHash;
+		private final byte[] digest;
+
+		private VerifiedCredential(String storedHash, byte[] digest) {
+			this.storedHash = storedHash;
+			this.digest = digest;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package org.cartaro.geoserver.security.drupal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.Info;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogException;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Layers of the catalog grouped by the name of their workspace. Added and
+ * removed layers are tracked as they happen. Any other change that might move
+ * layers between workspaces causes the index to be rebuilt on next use.
+ */
+public class WorkspaceLayerIndex implements CatalogListener {
+	protected static Logger LOGGER = Logging
+			.getLogger("org.geoserver.security");
+
+	private final Catalog catalog;
+
+	/**
+	 * Immutable lists of layers by workspace name. Null if the index needs to
+	 * be rebuilt. Replaced as a whole on every change so readers never see
+	 * partial updates.
+	 */
+	private volatile Map<String, List<LayerInfo>> layersByWorkspace;
+
+	/**
+	 * Incremented on every change of the index
+	 */
+	private volatile long version;
+
+	public WorkspaceLayerIndex(Catalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * @param workspaceName
+	 * @return Layers whose store belongs to workspace
+	 */
+	public List<LayerInfo> getLayers(String workspaceName) {
+		Map<String, List<LayerInfo>> index = layersByWorkspace;
+		if (index == null) {
+			index = rebuild();
+		}
+		final List<LayerInfo> layers = index.get(workspaceName);
+		if (layers == null) {
+			return Collections.emptyList();
+		}
+		return layers;
+	}
+
+	/**
+	 * @return Number that changes whenever layers were added, removed or
+	 *         moved
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	private synchronized Map<String, List<LayerInfo>> rebuild() {
+		Map<String, List<LayerInfo>> index = layersByWorkspace;
+		if (index != null) {
+			// Rebuilt by other thread meanwhile
+			return index;
+		}
+		final HashMap<String, List<LayerInfo>> building = new HashMap<String, List<LayerInfo>>();
+		for (LayerInfo layer : catalog.getLayers()) {
+			final String workspaceName = getWorkspaceName(layer);
+			if (workspaceName == null) {
+				continue;
+			}
+			List<LayerInfo> layers = building.get(workspaceName);
+			if (layers == null) {
+				layers = new ArrayList<LayerInfo>();
+				building.put(workspaceName, layers);
+			}
+			layers.add(layer);
+		}
+		for (Map.Entry<String, List<LayerInfo>> entry : building.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		LOGGER.fine("Indexed layers of " + building.size() + " workspaces");
+		index = Collections.unmodifiableMap(building);
+		layersByWorkspace = index;
+		return index;
+	}
+
+	/**
+	 * @param layer
+	 * @return Name of the layer's workspace or null if it cannot be resolved
+	 */
+	private static String getWorkspaceName(LayerInfo layer) {
+		final ResourceInfo resource = layer.getResource();
+		if (resource == null || resource.getStore() == null
+				|| resource.getStore().getWorkspace() == null) {
+			return null;
+		}
+		return resource.getStore().getWorkspace().getName();
+	}
+
+	/**
+	 * Forces the index to be rebuilt on next use.
+	 */
+	public synchronized void invalidate() {
+		layersByWorkspace = null;
+		version++;
+	}
+
+	/**
+	 * Replaces the layer list of a single workspace.
+	 *
+	 * @param layer
+	 * @param add
+	 *            True to add layer, false to remove it
+	 */
+	private synchronized void update(LayerInfo layer, boolean add) {
+		final Map<String, List<LayerInfo>> index = layersByWorkspace;
+		final String workspaceName = getWorkspaceName(layer);
+		if (index == null || workspaceName == null) {
+			invalidate();
+			return;
+		}
+		final ArrayList<LayerInfo> layers = new ArrayList<LayerInfo>();
+		if (index.containsKey(workspaceName)) {
+			for (LayerInfo existing : index.get(workspaceName)) {
+				if (!existing.getId().equals(layer.getId())) {
+					layers.add(existing);
+				}
+			}
+		}
+		if (add) {
+			layers.add(layer);
+		}
+		final HashMap<String, List<LayerInfo>> updated = new HashMap<String, List<LayerInfo>>(
+				index);
+		updated.put(workspaceName, Collections.unmodifiableList(layers));
+		layersByWorkspace = Collections.unmodifiableMap(updated);
+		version++;
+	}
+
+	/**
+	 * @param info
+	 * @return True if a change of info may affect which layers belong to a
+	 *         workspace
+	 */
+	private static boolean isIndexed(Info info) {
+		return info instanceof LayerInfo || info instanceof ResourceInfo
+				|| info instanceof StoreInfo || info instanceof WorkspaceInfo;
+	}
+
+	public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+		if (event.getSource() instanceof LayerInfo) {
+			update((LayerInfo) event.getSource(), true);
+		}
+	}
+
+	public void handleRemoveEvent(CatalogRemoveEvent event)
+			throws CatalogException {
+		if (event.getSource() instanceof LayerInfo) {
+			update((LayerInfo) event.getSource(), false);
+		} else if (isIndexed(event.getSource())) {
+			invalidate();
+		}
+	}
+
+	public void handleModifyEvent(CatalogModifyEvent event)
+			throws CatalogException {
+		// Changes are applied after this event, see handlePostModifyEvent
+	}
+
+	public void handlePostModifyEvent(CatalogPostModifyEvent event)
+			throws CatalogException {
+		if (isIndexed(event.getSource())) {
+			invalidate();
+		}
+	}
+
+	public void reloaded() {
+		invalidate();
+	}
+}
@@ -0,0 +1,93 @@
+package org.cartaro.geoserver.security.drupal.filter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.cartaro.geoserver.security.drupal.DrupalAuthorizationIndex;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRule;
+
+/**
+ * Layer rules of Drupal workspaces compiled into one
+ * {@link DrupalAuthorizationIndex} per workspace. Compiled from the very rules
+ * that GeoServer's rule tree is built from and tagged with the modification
+ * time of the rule DAO at that moment. Once the DAO reports another
+ * modification time the tree is about to be rebuilt and the indexes are no
+ * longer handed out, so that they never decide differently than the tree.
+ */
+public class CompiledLayerRules {
+	private final long version;
+	private final Map<String, DrupalAuthorizationIndex> indexes;
+
+	/**
+	 * @param rules
+	 *            Rules of Drupal instances, layer and workspace wide ones
+	 * @param version
+	 *            Modification time of the rule DAO the rules were taken at
+	 */
+	public CompiledLayerRules(Collection<? extends DataAccessRule> rules,
+			long version) {
+		this.version = version;
+		final HashMap<String, Map<String, Set<String>>> readByWorkspace = new HashMap<String, Map<String, Set<String>>>();
+		final HashMap<String, Map<String, Set<String>>> writeByWorkspace = new HashMap<String, Map<String, Set<String>>>();
+		for (DataAccessRule rule : rules) {
+			if (DataAccessRule.ANY.equals(rule.getLayer())) {
+				// Workspace wide rules are left to the rule tree
+				continue;
+			}
+			final Map<String, Set<String>> layerRoles;
+			if (rule.getAccessMode() == AccessMode.READ) {
+				layerRoles = getLayerRoles(readByWorkspace, rule.getRoot());
+			} else if (rule.getAccessMode() == AccessMode.WRITE) {
+				layerRoles = getLayerRoles(writeByWorkspace, rule.getRoot());
+			} else {
+				continue;
+			}
+			layerRoles.put(rule.getLayer(), rule.getRoles());
+		}
+		final HashMap<String, DrupalAuthorizationIndex> compiled = new HashMap<String, DrupalAuthorizationIndex>();
+		for (String workspace : readByWorkspace.keySet()) {
+			compiled.put(workspace, new DrupalAuthorizationIndex(
+					readByWorkspace.get(workspace), getLayerRoles(
+							writeByWorkspace, workspace)));
+		}
+		for (String workspace : writeByWorkspace.keySet()) {
+			if (!compiled.containsKey(workspace)) {
+				compiled.put(workspace, new DrupalAuthorizationIndex(
+						getLayerRoles(readByWorkspace, workspace),
+						writeByWorkspace.get(workspace)));
+			}
+		}
+		indexes = Collections.unmodifiableMap(compiled);
+	}
+
+	private static Map<String, Set<String>> getLayerRoles(
+			HashMap<String, Map<String, Set<String>>> byWorkspace,
+			String workspace) {
+		Map<String, Set<String>> layerRoles = byWorkspace.get(workspace);
+		if (layerRoles == null) {
+			layerRoles = new HashMap<String, Set<String>>();
+			byWorkspace.put(workspace, layerRoles);
+		}
+		return layerRoles;
+	}
+
+	/**
+	 * @param workspace
+	 * @param currentVersion
+	 *            Current modification time of the rule DAO
+	 * @return Compiled permissions of workspace or null if the workspace has
+	 *         no Drupal layer rules or the rules changed since they were
+	 *         compiled
+	 */
+	public DrupalAuthorizationIndex getIndex(String workspace,
+			long currentVersion) {
+		if (currentVersion != version) {
+			return null;
+		}
+		return indexes.get(workspace);
+	}
+}
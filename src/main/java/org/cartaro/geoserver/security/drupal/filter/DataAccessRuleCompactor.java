@@ -0,0 +1,100 @@
+package org.cartaro.geoserver.security.drupal.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cartaro.geoserver.security.drupal.DrupalDataAccessRule;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRule;
+
+/**
+ * Replaces per-layer rules by a workspace-wide rule where possible. If every
+ * layer of a workspace has a rule for a mode and all those rules grant the
+ * same roles, they are replaced by a single rule for workspace.*.mode which
+ * the layers inherit. Workspaces whose layers grant different roles are left
+ * as they are.
+ * <p>
+ * Access to the layers stays the same, but the workspace itself changes.
+ * Without a workspace-wide rule it inherits *.*.mode from layers.properties.
+ * With one, only the roles of its layers are granted the mode on the
+ * workspace. This also applies to workspace-wide layer groups and the
+ * workspace's virtual services.
+ */
+public class DataAccessRuleCompactor {
+
+	private DataAccessRuleCompactor() {
+	}
+
+	/**
+	 * @param rules
+	 *            Rules to compact
+	 * @param layerNamesByWorkspace
+	 *            Names of all layers per workspace. Rules of workspaces
+	 *            missing here are kept as they are.
+	 * @return Rules granting the same access to layers. Workspaces that were
+	 *         compacted are limited to the roles of their layers.
+	 */
+	public static List<DataAccessRule> compact(
+			Collection<? extends DataAccessRule> rules,
+			Map<String, Set<String>> layerNamesByWorkspace) {
+		final List<DataAccessRule> compacted = new ArrayList<DataAccessRule>();
+		final HashMap<String, List<DataAccessRule>> groups = new HashMap<String, List<DataAccessRule>>();
+		for (DataAccessRule rule : rules) {
+			final AccessMode mode = rule.getAccessMode();
+			if (DataAccessRule.ANY.equals(rule.getLayer())
+					|| (mode != AccessMode.READ && mode != AccessMode.WRITE)
+					|| !layerNamesByWorkspace.containsKey(rule.getRoot())) {
+				compacted.add(rule);
+				continue;
+			}
+			final String key = rule.getRoot() + "." + mode;
+			List<DataAccessRule> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<DataAccessRule>();
+				groups.put(key, group);
+			}
+			group.add(rule);
+		}
+		for (List<DataAccessRule> group : groups.values()) {
+			compacted.addAll(compactGroup(group, layerNamesByWorkspace));
+		}
+		return compacted;
+	}
+
+	/**
+	 * @param group
+	 *            Layer rules of a single workspace and mode
+	 * @param layerNamesByWorkspace
+	 * @return Compacted rules
+	 */
+	private static List<DataAccessRule> compactGroup(
+			List<DataAccessRule> group,
+			Map<String, Set<String>> layerNamesByWorkspace) {
+		final DataAccessRule first = group.get(0);
+		final Set<String> roles = first.getRoles();
+		final HashSet<String> coveredLayers = new HashSet<String>();
+		for (DataAccessRule rule : group) {
+			if (!roles.equals(rule.getRoles())) {
+				return group;
+			}
+			coveredLayers.add(rule.getLayer());
+		}
+		final Set<String> layerNames = layerNamesByWorkspace.get(first
+				.getRoot());
+		if (roles.isEmpty() || layerNames.isEmpty()
+				|| !coveredLayers.containsAll(layerNames)) {
+			// Layers without rule would inherit the workspace rule
+			return group;
+		}
+		final List<DataAccessRule> compacted = new ArrayList<DataAccessRule>();
+		// Shares the roles of the rules it replaces
+		compacted.add(new DrupalDataAccessRule(first.getRoot(),
+				DataAccessRule.ANY, first.getAccessMode(), roles));
+		return compacted;
+	}
+}
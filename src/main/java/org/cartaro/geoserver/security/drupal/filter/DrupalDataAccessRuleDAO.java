@@ -2,12 +2,20 @@ package org.cartaro.geoserver.security.drupal.filter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import org.cartaro.geoserver.security.drupal.DrupalAuthorizationIndex;
+import org.cartaro.geoserver.security.drupal.DrupalDataChangeListener;
 import org.cartaro.geoserver.security.drupal.DrupalRoleService;
+import org.cartaro.geoserver.security.drupal.WorkspaceLayerIndex;
 import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.LayerInfo;
 import org.geoserver.config.GeoServerDataDirectory;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.security.GeoServerRoleService;
@@ -16,27 +24,47 @@ import org.geoserver.security.impl.DataAccessRule;
 import org.geoserver.security.impl.DataAccessRuleDAO;
 import org.geotools.util.logging.Logging;
 
-public class DrupalDataAccessRuleDAO extends DataAccessRuleDAO implements LastModificationTriggerable {
+public class DrupalDataAccessRuleDAO extends DataAccessRuleDAO implements LastModificationTriggerable,
+		DrupalDataChangeListener {
 	protected static Logger LOGGER = Logging
 			.getLogger(DrupalDataAccessRuleDAO.class);
-	private final Catalog rawCatalog;
 
 	/**
-	 * Should be the time of last modification of permission related data in
-	 * Drupal. Currently, this is just a time set in intervals because the
-	 * former is unknown.
+	 * Layers of the raw catalog by workspace, kept current by catalog events
 	 */
-	private long lastModified;
+	private final WorkspaceLayerIndex layerIndex;
+
+	/**
+	 * Time permission related data in Drupal or the layers of the catalog
+	 * were found to have changed.
+	 */
+	private volatile long lastModified = System.currentTimeMillis();
+
+	private final PermissionFingerprint fingerprint = new PermissionFingerprint();
+
+	/**
+	 * Workspaces that have rules in layers.properties and the modification
+	 * time of that file they were read at
+	 */
+	private volatile Set<String> propertyRuleWorkspaces;
+	private volatile long propertyRulesModified = -1;
+
+	/**
+	 * Drupal rules the last call of {@link #getRules()} returned, compiled for
+	 * {@link DrupalResourceAccessManager}
+	 */
+	private volatile CompiledLayerRules compiledRules = new CompiledLayerRules(
+			Collections.<DataAccessRule> emptySet(), Long.MIN_VALUE);
 
 	protected DrupalDataAccessRuleDAO(GeoServerDataDirectory dd,
 			Catalog rawCatalog) throws IOException {
 		super(dd, rawCatalog);
 		LOGGER.info("Injected: DrupalDataAccessRuleDAO");
-		this.rawCatalog = rawCatalog;
+		layerIndex = new WorkspaceLayerIndex(rawCatalog);
+		rawCatalog.addListener(layerIndex);
 
-		// Change modification date to force update of permissions every 5s.
-		Timer modificationTrigger = new Timer();
-		modificationTrigger.scheduleAtFixedRate(new LastModificationTimerTask(this), 000, 2000);
+		// Check for changes in Drupal on the shared scheduler
+		LastModificationCheck.start("layer rules", this);
 	}
 
 	@Override
@@ -56,7 +84,15 @@ public class DrupalDataAccessRuleDAO extends DataAccessRuleDAO implements LastMo
 			DrupalRoleService roleService = (DrupalRoleService) activeRoleService;
 			try {
 				LOGGER.info("Injected: loading layer rules");
-				rules.addAll(roleService.getLayerAccessRules(rawCatalog));
+				// Tag the rules with a modification time that already covers
+				// any change in Drupal, so that they are replaced once the
+				// time moves on and the rule tree is rebuilt
+				updateLastModified();
+				final long version = getLastModified();
+				final Collection<? extends DataAccessRule> drupalRules = roleService
+						.getLayerAccessRules(layerIndex);
+				compiledRules = new CompiledLayerRules(drupalRules, version);
+				rules.addAll(compact(drupalRules));
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -66,15 +102,86 @@ public class DrupalDataAccessRuleDAO extends DataAccessRuleDAO implements LastMo
 	}
 
 	/**
-	 * Use current time to force reloading of permissions.
+	 * Merges rules of layers into workspace-wide rules where this does not
+	 * change access to layers, see {@link DataAccessRuleCompactor}.
+	 * Workspaces with rules in layers.properties are left untouched.
+	 * 
+	 * @param drupalRules
+	 * @return Compacted rules
+	 */
+	private List<DataAccessRule> compact(
+			Collection<? extends DataAccessRule> drupalRules) {
+		final HashMap<String, Set<String>> layerNamesByWorkspace = new HashMap<String, Set<String>>();
+		for (DataAccessRule rule : drupalRules) {
+			final String workspace = rule.getRoot();
+			if (layerNamesByWorkspace.containsKey(workspace)
+					|| hasPropertyRules(workspace)) {
+				continue;
+			}
+			final HashSet<String> layerNames = new HashSet<String>();
+			for (LayerInfo layer : layerIndex.getLayers(workspace)) {
+				layerNames.add(layer.getName());
+			}
+			layerNamesByWorkspace.put(workspace, layerNames);
+		}
+		final List<DataAccessRule> compacted = DataAccessRuleCompactor.compact(
+				drupalRules, layerNamesByWorkspace);
+		LOGGER.fine("Compacted " + drupalRules.size() + " Drupal rules to "
+				+ compacted.size());
+		return compacted;
+	}
+
+	/**
+	 * @param workspace
+	 * @return True if layers.properties contains rules for workspace which
+	 *         might override those from Drupal
+	 */
+	public boolean hasPropertyRules(String workspace) {
+		final long modified = super.getLastModified();
+		Set<String> workspaces = propertyRuleWorkspaces;
+		if (workspaces == null || modified != propertyRulesModified) {
+			workspaces = new HashSet<String>();
+			for (DataAccessRule rule : super.getRules()) {
+				workspaces.add(rule.getRoot());
+			}
+			propertyRuleWorkspaces = workspaces;
+			propertyRulesModified = modified;
+		}
+		return workspaces.contains(workspace);
+	}
+
+	/**
+	 * @param workspace
+	 * @return Compiled Drupal permissions of workspace that the rule tree was
+	 *         built from or null if there are none or the rule tree is out of
+	 *         date
+	 */
+	public DrupalAuthorizationIndex getAuthorizationIndex(String workspace) {
+		return compiledRules.getIndex(workspace, getLastModified());
+	}
+
+	/**
+	 * @return Time of last change in layers.properties, Drupal's permissions
+	 *         or the catalog's layers
 	 */
 	@Override
 	public long getLastModified() {
-		return lastModified;
+		return Math.max(super.getLastModified(), lastModified);
+	}
+
+	public boolean updateLastModified() {
+		if (fingerprint.update("|layers=" + layerIndex.getVersion())) {
+			lastModified = System.currentTimeMillis();
+			return true;
+		}
+		return false;
 	}
 
-	public void setLastModified(long newLastModified) {
-		lastModified = newLastModified;
-		
+	/**
+	 * Called when roles or permissions of a Drupal instance were updated.
+	 * Checks for changes right away instead of waiting for the next check.
+	 */
+	public void drupalDataChanged(String table) {
+		updateLastModified();
 	}
 }
@@ -1,17 +1,18 @@
 package org.cartaro.geoserver.security.drupal.filter;
 
 import java.io.IOException;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
 import java.util.logging.Logger;
 
+import org.cartaro.geoserver.security.drupal.DrupalDataChangeListener;
 import org.cartaro.geoserver.security.drupal.DrupalRoleService;
 import org.geoserver.catalog.impl.WorkspaceInfoImpl;
 import org.geoserver.config.GeoServerDataDirectory;
@@ -31,25 +32,42 @@ import org.springframework.security.access.SecurityConfig;
  * However instance administrators are not allowed to access any URI that would
  * provide access to others' workspaces.
  */
-public class DrupalRESTAccessRuleDAO extends RESTAccessRuleDAO implements LastModificationTriggerable {
+public class DrupalRESTAccessRuleDAO extends RESTAccessRuleDAO implements LastModificationTriggerable,
+		DrupalDataChangeListener {
 	protected static Logger LOGGER = Logging
 			.getLogger(DrupalRESTAccessRuleDAO.class);
 
 	/**
-	 * Should be the time of last modification of permission related data in
-	 * Drupal. Currently, this is just a time set in intervals because the
-	 * former is unknown.
+	 * Time permission related data in Drupal was found to have changed.
 	 */
-	private long lastModified;
+	private volatile long lastModified = System.currentTimeMillis();
+
+	private final PermissionFingerprint fingerprint = new PermissionFingerprint();
+
+	/**
+	 * Last generated REST rules, null if none were generated yet
+	 */
+	private List<RESTfulDefinitionSourceMapping> restRules;
+
+	/**
+	 * Administrators by workspace name that restRules were generated for
+	 */
+	private Map<String, Set<GeoServerRole>> restRulesAdmins;
+
+	private long restRulesVersion;
+
+	/**
+	 * Value of lastModified when workspace administrators were checked last
+	 */
+	private volatile long restRulesCheckedAt = -1;
 
 	public DrupalRESTAccessRuleDAO(GeoServerDataDirectory dd)
 			throws IOException {
 		super(dd);
 		LOGGER.info("Drupal REST Access Rule injected");
 
-		// Change modification date to force update of permissions every 5s.
-		Timer modificationTrigger = new Timer();
-		modificationTrigger.scheduleAtFixedRate(new LastModificationTimerTask(this), 2000, 2000);
+		// Check for changes in Drupal on the shared scheduler
+		LastModificationCheck.start("REST rules", this);
 	}
 
 	/**
@@ -72,113 +90,170 @@ public class DrupalRESTAccessRuleDAO extends RESTAccessRuleDAO implements LastMo
 
 	/**
 	 * @return Rules that grant instance administrators full access to their
-	 *         workspaces whilst prohibiting to access others' data.
+	 *         workspaces whilst prohibiting to access others' data. Rules are
+	 *         only generated anew if workspace administrators changed.
 	 */
-	public Collection<RESTfulDefinitionSourceMapping> getRESTRules() {
-		ArrayList<RESTfulDefinitionSourceMapping> rules = new ArrayList<RESTfulDefinitionSourceMapping>();
-
+	public synchronized Collection<RESTfulDefinitionSourceMapping> getRESTRules() {
 		final GeoServerSecurityManager manager = GeoServerExtensions
 				.bean(GeoServerSecurityManager.class);
 		final GeoServerRoleService activeRoleService = manager
 				.getActiveRoleService();
-		if (activeRoleService instanceof DrupalRoleService) {
-			// Grant Drupal instances access to REST services
-			final DrupalRoleService roleService = (DrupalRoleService) activeRoleService;
-
-			try {
-				final HashMap<WorkspaceInfoImpl, Set<GeoServerRole>> admins = roleService
-						.getWorkspaceAdministrators();
-				final HashSet<GeoServerRole> sharedAdmins = new HashSet<GeoServerRole>();
-				for (final Entry<WorkspaceInfoImpl, Set<GeoServerRole>> workspaceMapping : admins
-						.entrySet()) {
-					// Collect administrative roles for permission that span
-					// across workspaces
-					sharedAdmins.addAll(workspaceMapping.getValue());
-
-					final String workspaceName = workspaceMapping.getKey()
-							.getName();
-					// Allow full access within own workspace
-					final RESTfulDefinitionSourceMapping ruleWorkspacesSubs = new RESTfulDefinitionSourceMapping();
-					ruleWorkspacesSubs.setUrl("/rest/workspaces/"
-							+ workspaceName + "/**");
-					// Allow to access own workspace in all formats
-					final RESTfulDefinitionSourceMapping ruleWorkspaces = new RESTfulDefinitionSourceMapping();
-					ruleWorkspaces.setUrl("/rest/workspaces/" + workspaceName
-							+ ".*");
-					// Allow full access to namespaces in own workspace
-					final RESTfulDefinitionSourceMapping ruleNamespacesSubs = new RESTfulDefinitionSourceMapping();
-					ruleNamespacesSubs.setUrl("/rest/namespaces/"
-							+ workspaceName + "/**");
-					// Allow to access own namespaces in all formats
-					final RESTfulDefinitionSourceMapping ruleNamespaces = new RESTfulDefinitionSourceMapping();
-					ruleNamespaces.setUrl("/rest/namespaces/" + workspaceName
-							+ ".*");
-					// Allow to access layers of own workspace in all formats
-					final RESTfulDefinitionSourceMapping ruleLayers = new RESTfulDefinitionSourceMapping();
-					ruleLayers.setUrl("/rest/layers/" + workspaceName + ":*");
-					// Allow full access to layers of own workspace
-					final RESTfulDefinitionSourceMapping ruleLayersSubs = new RESTfulDefinitionSourceMapping();
-					ruleLayersSubs.setUrl("/rest/layers/" + workspaceName
-							+ ":*/**");
-
-					// Grant above permissions to all administrative users of
-					// the workspace in question
-					final RESTfulDefinitionSourceMapping[] workspaceDependedRules = {
-							ruleWorkspacesSubs, ruleWorkspaces,
-							ruleNamespacesSubs, ruleNamespaces, ruleLayers,
-							ruleLayersSubs };
-					for (final GeoServerRole workspaceAdmin : workspaceMapping
-							.getValue()) {
-						final SecurityConfig adminRole = new SecurityConfig(
-								workspaceAdmin.getAuthority());
-						for (final RESTfulDefinitionSourceMapping rule : workspaceDependedRules) {
-							rule.addConfigAttribute(adminRole);
-						}
-					}
-					for (final RESTfulDefinitionSourceMapping rule : workspaceDependedRules) {
-						rules.add(rule);
-					}
-				}
+		if (!(activeRoleService instanceof DrupalRoleService)) {
+			return new ArrayList<RESTfulDefinitionSourceMapping>();
+		}
+		// Grant Drupal instances access to REST services
+		final DrupalRoleService roleService = (DrupalRoleService) activeRoleService;
+
+		// Read before querying so that changes during the query are not lost
+		final long checkedAt = lastModified;
+		final HashMap<WorkspaceInfoImpl, Set<GeoServerRole>> admins;
+		try {
+			admins = roleService.getWorkspaceAdministrators();
+		} catch (IOException e) {
+			throw new RuntimeException(
+					"Could not load workspace administrators", e);
+		}
+		final HashMap<String, Set<GeoServerRole>> adminsByWorkspace = new HashMap<String, Set<GeoServerRole>>();
+		for (final Entry<WorkspaceInfoImpl, Set<GeoServerRole>> workspaceMapping : admins
+				.entrySet()) {
+			adminsByWorkspace.put(workspaceMapping.getKey().getName(),
+					new HashSet<GeoServerRole>(workspaceMapping.getValue()));
+		}
+		if (restRules == null || !adminsByWorkspace.equals(restRulesAdmins)) {
+			restRules = Collections.unmodifiableList(buildRESTRules(admins));
+			restRulesAdmins = adminsByWorkspace;
+			restRulesVersion++;
+			LOGGER.info("Generated REST rules version " + restRulesVersion);
+		}
+		restRulesCheckedAt = checkedAt;
+		return restRules;
+	}
 
-				// Allow all workspace administrators to query the workspaces
-				// and namespace list.
-				final RESTfulDefinitionSourceMapping ruleWorkspacesShared = new RESTfulDefinitionSourceMapping();
-				ruleWorkspacesShared.setUrl("/rest/workspaces*");
-				ruleWorkspacesShared.setHttpMethods(new String[] { "GET",
-						"POST" });
-				final RESTfulDefinitionSourceMapping ruleNamespacesShared = new RESTfulDefinitionSourceMapping();
-				ruleNamespacesShared.setUrl("/rest/namespaces*");
-				ruleNamespacesShared.setHttpMethods(new String[] { "GET" });
-				for (final GeoServerRole admin : sharedAdmins) {
-					final SecurityConfig adminName = new SecurityConfig(
-							admin.getAuthority());
-					ruleWorkspacesShared.addConfigAttribute(adminName);
-					ruleNamespacesShared.addConfigAttribute(adminName);
+	/**
+	 * @param admins
+	 *            Administrators by workspace
+	 * @return Rules that grant instance administrators full access to their
+	 *         workspaces whilst prohibiting to access others' data.
+	 */
+	private List<RESTfulDefinitionSourceMapping> buildRESTRules(
+			HashMap<WorkspaceInfoImpl, Set<GeoServerRole>> admins) {
+		ArrayList<RESTfulDefinitionSourceMapping> rules = new ArrayList<RESTfulDefinitionSourceMapping>();
+		final HashSet<GeoServerRole> sharedAdmins = new HashSet<GeoServerRole>();
+		for (final Entry<WorkspaceInfoImpl, Set<GeoServerRole>> workspaceMapping : admins
+				.entrySet()) {
+			// Collect administrative roles for permission that span
+			// across workspaces
+			sharedAdmins.addAll(workspaceMapping.getValue());
+
+			final String workspaceName = workspaceMapping.getKey()
+					.getName();
+			// Allow full access within own workspace
+			final RESTfulDefinitionSourceMapping ruleWorkspacesSubs = new RESTfulDefinitionSourceMapping();
+			ruleWorkspacesSubs.setUrl("/rest/workspaces/"
+					+ workspaceName + "/**");
+			// Allow to access own workspace in all formats
+			final RESTfulDefinitionSourceMapping ruleWorkspaces = new RESTfulDefinitionSourceMapping();
+			ruleWorkspaces.setUrl("/rest/workspaces/" + workspaceName
+					+ ".*");
+			// Allow full access to namespaces in own workspace
+			final RESTfulDefinitionSourceMapping ruleNamespacesSubs = new RESTfulDefinitionSourceMapping();
+			ruleNamespacesSubs.setUrl("/rest/namespaces/"
+					+ workspaceName + "/**");
+			// Allow to access own namespaces in all formats
+			final RESTfulDefinitionSourceMapping ruleNamespaces = new RESTfulDefinitionSourceMapping();
+			ruleNamespaces.setUrl("/rest/namespaces/" + workspaceName
+					+ ".*");
+			// Allow to access layers of own workspace in all formats
+			final RESTfulDefinitionSourceMapping ruleLayers = new RESTfulDefinitionSourceMapping();
+			ruleLayers.setUrl("/rest/layers/" + workspaceName + ":*");
+			// Allow full access to layers of own workspace
+			final RESTfulDefinitionSourceMapping ruleLayersSubs = new RESTfulDefinitionSourceMapping();
+			ruleLayersSubs.setUrl("/rest/layers/" + workspaceName
+					+ ":*/**");
+
+			// Grant above permissions to all administrative users of
+			// the workspace in question
+			final RESTfulDefinitionSourceMapping[] workspaceDependedRules = {
+					ruleWorkspacesSubs, ruleWorkspaces,
+					ruleNamespacesSubs, ruleNamespaces, ruleLayers,
+					ruleLayersSubs };
+			for (final GeoServerRole workspaceAdmin : workspaceMapping
+					.getValue()) {
+				final SecurityConfig adminRole = new SecurityConfig(
+						workspaceAdmin.getAuthority());
+				for (final RESTfulDefinitionSourceMapping rule : workspaceDependedRules) {
+					rule.addConfigAttribute(adminRole);
 				}
-				rules.add(ruleWorkspacesShared);
-				rules.add(ruleNamespacesShared);
-			} catch (SQLException e) {
-				throw new RuntimeException(
-						"Could not load workspace administrators", e);
 			}
+			for (final RESTfulDefinitionSourceMapping rule : workspaceDependedRules) {
+				rules.add(rule);
+			}
+		}
+
+		// Allow all workspace administrators to query the workspaces
+		// and namespace list.
+		final RESTfulDefinitionSourceMapping ruleWorkspacesShared = new RESTfulDefinitionSourceMapping();
+		ruleWorkspacesShared.setUrl("/rest/workspaces*");
+		ruleWorkspacesShared.setHttpMethods(new String[] { "GET",
+				"POST" });
+		final RESTfulDefinitionSourceMapping ruleNamespacesShared = new RESTfulDefinitionSourceMapping();
+		ruleNamespacesShared.setUrl("/rest/namespaces*");
+		ruleNamespacesShared.setHttpMethods(new String[] { "GET" });
+		for (final GeoServerRole admin : sharedAdmins) {
+			final SecurityConfig adminName = new SecurityConfig(
+					admin.getAuthority());
+			ruleWorkspacesShared.addConfigAttribute(adminName);
+			ruleNamespacesShared.addConfigAttribute(adminName);
 		}
+		rules.add(ruleWorkspacesShared);
+		rules.add(ruleNamespacesShared);
 
 		return rules;
 	}
 
+	/**
+	 * @return Number that is incremented whenever REST rules were generated
+	 */
+	public synchronized long getRESTRulesVersion() {
+		return restRulesVersion;
+	}
+
 	@Override
 	public long getLastModified() {
 		return lastModified;
 	}
 
+	/**
+	 * @return True if rest.properties or Drupal's permissions changed since
+	 *         REST rules were last requested
+	 */
 	@Override
 	public boolean isModified() {
-		// Refresh always because there is currently no way for GeoServer to be
-		// notified about changes in Drupal.
-		return true;
+		return super.isModified() || restRulesCheckedAt != lastModified;
+	}
+
+	/**
+	 * Forces REST rules to be requested and checked again.
+	 */
+	@Override
+	public void reload() {
+		super.reload();
+		restRulesCheckedAt = -1;
 	}
 
-	public void setLastModified(long newLastModified) {
-		lastModified = newLastModified;
+	public boolean updateLastModified() {
+		if (fingerprint.update("")) {
+			lastModified = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called when roles or permissions of a Drupal instance were updated.
+	 * Checks for changes right away instead of waiting for the next check.
+	 */
+	public void drupalDataChanged(String table) {
+		updateLastModified();
 	}
 }
@@ -0,0 +1,74 @@
+package org.cartaro.geoserver.security.drupal.filter;
+
+import java.util.logging.Logger;
+
+import org.cartaro.geoserver.security.drupal.DrupalAuthorizationIndex;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRuleDAO;
+import org.geoserver.security.impl.DefaultResourceAccessManager;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Grants access to layers of Drupal workspaces using the compiled permissions
+ * of the Drupal instances. The permissions are compiled from the rules
+ * GeoServer's rule tree is built from and are only used while that tree is
+ * current, see {@link CompiledLayerRules}. Layers without permissions in
+ * Drupal, workspaces that have rules in layers.properties and all denials are
+ * left to GeoServer's rule tree so that its semantics are kept.
+ */
+public class DrupalResourceAccessManager extends DefaultResourceAccessManager {
+	protected static Logger LOGGER = Logging
+			.getLogger("org.geoserver.security");
+
+	private final DataAccessRuleDAO dao;
+
+	public DrupalResourceAccessManager(DataAccessRuleDAO dao, Catalog rawCatalog) {
+		super(dao, rawCatalog);
+		this.dao = dao;
+		LOGGER.info("Injected: DrupalResourceAccessManager");
+	}
+
+	@Override
+	public boolean canAccess(Authentication user, ResourceInfo resource,
+			AccessMode mode) {
+		if (Boolean.TRUE.equals(canAccessByDrupal(user, resource, mode))) {
+			return true;
+		}
+		return super.canAccess(user, resource, mode);
+	}
+
+	/**
+	 * @return Decision of Drupal or null if it is not responsible
+	 */
+	private Boolean canAccessByDrupal(Authentication user,
+			ResourceInfo resource, AccessMode mode) {
+		if (resource.getStore() == null
+				|| resource.getStore().getWorkspace() == null) {
+			return null;
+		}
+		if (!(dao instanceof DrupalDataAccessRuleDAO)) {
+			return null;
+		}
+		final DrupalDataAccessRuleDAO drupalDao = (DrupalDataAccessRuleDAO) dao;
+		final String workspace = resource.getStore().getWorkspace().getName();
+		if (drupalDao.hasPropertyRules(workspace)) {
+			return null;
+		}
+		final DrupalAuthorizationIndex index = drupalDao
+				.getAuthorizationIndex(workspace);
+		if (index == null) {
+			return null;
+		}
+		final String layer = resource.getName();
+		if (index.isPublic(layer, mode)) {
+			// Most requests are anonymous ones for public layers
+			return Boolean.TRUE;
+		}
+		return index.canAccess(
+				index.getRoleBits(user == null ? null : user.getAuthorities()),
+				layer, mode);
+	}
+}
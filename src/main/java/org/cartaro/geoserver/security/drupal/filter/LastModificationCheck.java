@@ -0,0 +1,101 @@
+package org.cartaro.geoserver.security.drupal.filter;
+
+import java.lang.ref.WeakReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cartaro.geoserver.security.drupal.DrupalRoleService;
+import org.cartaro.geoserver.security.drupal.DrupalScheduler;
+import org.cartaro.geoserver.security.drupal.DrupalSecurityServiceConfig;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.GeoServerRoleService;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Periodically asks a rule DAO to check for changes on the shared scheduler.
+ * Stops by itself once the DAO has been garbage collected.
+ */
+class LastModificationCheck implements DrupalScheduler.PeriodicTask {
+
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+    private WeakReference<LastModificationTriggerable> lastModificationTriggerable;
+
+    private final String name;
+
+    /**
+     * Milliseconds between checks as long as changes are found
+     */
+    private volatile long interval;
+
+    private volatile DrupalScheduler.Schedule schedule;
+
+    private LastModificationCheck(String name, LastModificationTriggerable triggerable) {
+    	LOGGER.log(Level.FINEST, "Creating LastModificationCheck");
+        this.name = name;
+        this.lastModificationTriggerable = 
+                new WeakReference<LastModificationTriggerable>(triggerable);
+    }
+
+    /**
+     * Starts checking triggerable for changes. Checks run at the default
+     * refresh interval until the Drupal instances are loaded and follow their
+     * configured refresh interval afterwards.
+     * @param name Describes triggerable in logs
+     * @param triggerable
+     */
+    static void start(String name, LastModificationTriggerable triggerable) {
+        LastModificationCheck check = new LastModificationCheck(name, triggerable);
+        check.reschedule(DrupalSecurityServiceConfig.DEFAULT_REFRESH_INTERVAL);
+    }
+
+    private void reschedule(long interval) {
+        final DrupalScheduler.Schedule previous = schedule;
+        if (previous != null) {
+            previous.cancel();
+        }
+        this.interval = interval;
+        schedule = DrupalScheduler.schedule(name, interval, this);
+    }
+
+    /**
+     * @return Shortest refresh interval configured for the Drupal instances
+     *         or the current interval if there are none
+     */
+    private long getConfiguredInterval() {
+        final GeoServerSecurityManager manager = GeoServerExtensions
+                .bean(GeoServerSecurityManager.class);
+        if (manager == null) {
+            return interval;
+        }
+        final GeoServerRoleService activeRoleService = manager.getActiveRoleService();
+        if (!(activeRoleService instanceof DrupalRoleService)) {
+            return interval;
+        }
+        return ((DrupalRoleService) activeRoleService).getRefreshInterval();
+    }
+
+    public boolean run() {
+        LastModificationTriggerable triggerable = this.lastModificationTriggerable.get();
+        if (triggerable == null) {
+            // triggerable has been garbage collected and does not exist anymore
+            LOGGER.log(Level.FINEST, "Cancelling LastModificationCheck");
+            if (schedule != null) {
+                schedule.cancel();
+            }
+            return false;
+        }
+        final long configured = getConfiguredInterval();
+        if (configured != interval) {
+            LOGGER.fine("Checking " + name + " every " + configured + "ms");
+            reschedule(configured);
+        }
+        try {
+            return triggerable.updateLastModified();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Checking for modifications failed", e);
+            return false;
+        }
+    }
+}
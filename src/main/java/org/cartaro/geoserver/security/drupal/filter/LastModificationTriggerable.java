@@ -3,8 +3,9 @@ package org.cartaro.geoserver.security.drupal.filter;
 abstract interface LastModificationTriggerable {
 
     /**
-     * set the new lastModifed timestamp
+     * check for changes and advance the lastModified timestamp if there were any
+     * @return true if changes were found
      */
-    abstract void setLastModified(long newLastModified);
+    abstract boolean updateLastModified();
 
 }
@@ -0,0 +1,54 @@
+package org.cartaro.geoserver.security.drupal.filter;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cartaro.geoserver.security.drupal.DrupalRoleService;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.GeoServerRoleService;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Tracks the fingerprint of permission related data in Drupal to tell when
+ * access rules need to be rebuilt.
+ */
+class PermissionFingerprint {
+	static final Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+	private String fingerprint;
+
+	/**
+	 * @param extra
+	 *            Additional state rules depend on, may be empty
+	 * @return True if permissions changed since the last call. Also true on
+	 *         first successful call.
+	 */
+	synchronized boolean update(String extra) {
+		final GeoServerSecurityManager manager = GeoServerExtensions
+				.bean(GeoServerSecurityManager.class);
+		if (manager == null) {
+			return false;
+		}
+		final GeoServerRoleService activeRoleService = manager
+				.getActiveRoleService();
+		if (!(activeRoleService instanceof DrupalRoleService)) {
+			return false;
+		}
+		String current;
+		try {
+			current = ((DrupalRoleService) activeRoleService)
+					.getPermissionFingerprint() + extra;
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not check Drupal for changes", e);
+			return false;
+		}
+		if (current.equals(fingerprint)) {
+			return false;
+		}
+		LOGGER.fine("Drupal permissions changed");
+		fingerprint = current;
+		return true;
+	}
+}
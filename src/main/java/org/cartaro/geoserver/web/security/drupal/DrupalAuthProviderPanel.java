@@ -28,6 +28,12 @@ public class DrupalAuthProviderPanel extends AuthenticationProviderPanel<DrupalS
 		add(new Label("drupalExtensionGitVersion", extensionInfo.getGitVersion()));
 		add(new Label("drupalExtensionVersion", extensionInfo.getVersion()));
 		add(new CheckBox("usePrefix"));
+		add(new TextField<Integer>("connectionPoolSize", Integer.class));
+		add(new TextField<Integer>("connectionPoolMaxWait", Integer.class));
+		add(new TextField<Integer>("connectionPoolIdleTimeout", Integer.class));
+		add(new TextField<Integer>("connectionValidationTimeout", Integer.class));
+		add(new TextField<Integer>("credentialCacheSize", Integer.class));
+		add(new TextField<Integer>("credentialCacheTimeToLive", Integer.class));
     }
 
 }
@@ -23,6 +23,15 @@ public class DrupalUserGroupServicePanel extends
 		add(new TextField<String>("databaseUser", String.class));
 		add(new TextField<String>("databasePassword", String.class));
 		add(new CheckBox("usePrefix"));
+		add(new TextField<Integer>("connectionPoolSize", Integer.class));
+		add(new TextField<Integer>("connectionPoolMaxWait", Integer.class));
+		add(new TextField<Integer>("connectionPoolIdleTimeout", Integer.class));
+		add(new TextField<Integer>("connectionValidationTimeout", Integer.class));
+		add(new TextField<Integer>("queryTimeout", Integer.class));
+		add(new TextField<Integer>("refreshInterval", Integer.class));
+		add(new TextField<Integer>("roleCacheSize", Integer.class));
+		add(new TextField<Integer>("roleCacheTimeToLive", Integer.class));
+		add(new CheckBox("useNotifications"));
 	}
 
 }
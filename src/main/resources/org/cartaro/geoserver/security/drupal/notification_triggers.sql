@@ -0,0 +1,36 @@
+-- Notifies GeoServer about changes of users, roles and permissions in a
+-- Drupal 7 database. Install into each Drupal database whose user group
+-- service has "Receive changes by notifications" enabled:
+--
+--   psql -d drupal -f notification_triggers.sql
+--
+-- Each notification on channel geoserver_sec_drupal carries the name of the
+-- changed table.
+
+CREATE OR REPLACE FUNCTION geoserver_sec_drupal_notify() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('geoserver_sec_drupal', TG_TABLE_NAME);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS geoserver_sec_drupal_notify ON role;
+CREATE TRIGGER geoserver_sec_drupal_notify
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON role
+	FOR EACH STATEMENT EXECUTE PROCEDURE geoserver_sec_drupal_notify();
+
+DROP TRIGGER IF EXISTS geoserver_sec_drupal_notify ON users_roles;
+CREATE TRIGGER geoserver_sec_drupal_notify
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON users_roles
+	FOR EACH STATEMENT EXECUTE PROCEDURE geoserver_sec_drupal_notify();
+
+DROP TRIGGER IF EXISTS geoserver_sec_drupal_notify ON role_permission;
+CREATE TRIGGER geoserver_sec_drupal_notify
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON role_permission
+	FOR EACH STATEMENT EXECUTE PROCEDURE geoserver_sec_drupal_notify();
+
+-- Drupal updates users on every login, so only relevant columns are watched.
+DROP TRIGGER IF EXISTS geoserver_sec_drupal_notify ON users;
+CREATE TRIGGER geoserver_sec_drupal_notify
+	AFTER INSERT OR DELETE OR UPDATE OF name, pass, status ON users
+	FOR EACH STATEMENT EXECUTE PROCEDURE geoserver_sec_drupal_notify();
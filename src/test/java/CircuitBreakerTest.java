@@ -0,0 +1,79 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+
+import org.cartaro.geoserver.security.drupal.CircuitBreaker;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void openAfterThreshold() throws SQLException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 1000, 8000);
+		assertFalse(breaker.recordFailure());
+		breaker.check();
+		assertTrue(breaker.recordFailure());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		// Probe is already scheduled
+		assertFalse(breaker.recordFailure());
+		try {
+			breaker.check();
+			fail("Open circuit must fail fast");
+		} catch (SQLException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void successResetsFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 1000, 8000);
+		assertFalse(breaker.recordFailure());
+		breaker.recordSuccess();
+		assertFalse(breaker.recordFailure());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	/**
+	 * Failed probes double the back-off up to its limit, a successful one
+	 * closes the circuit.
+	 */
+	@Test
+	public void probeBackoff() throws SQLException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000, 3000);
+		assertTrue(breaker.recordFailure());
+		assertEquals(1000, breaker.getBackoff());
+		assertTrue(breaker.startProbe());
+		assertFalse(breaker.startProbe());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.recordFailure());
+		assertEquals(2000, breaker.getBackoff());
+		assertTrue(breaker.startProbe());
+		assertTrue(breaker.recordFailure());
+		assertEquals(3000, breaker.getBackoff());
+		assertTrue(breaker.startProbe());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1000, breaker.getBackoff());
+		breaker.check();
+	}
+
+	/**
+	 * A probe that could not be scheduled leaves the circuit open and lets
+	 * the next caller schedule it again.
+	 */
+	@Test
+	public void rejectedProbe() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000, 8000);
+		assertTrue(breaker.recordFailure());
+		assertFalse(breaker.claimProbe());
+		breaker.cancelProbe();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.claimProbe());
+		assertFalse(breaker.claimProbe());
+		assertTrue(breaker.startProbe());
+		assertFalse(breaker.claimProbe());
+	}
+}
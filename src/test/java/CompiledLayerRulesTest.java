@@ -0,0 +1,63 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cartaro.geoserver.security.drupal.DrupalAuthorizationIndex;
+import org.cartaro.geoserver.security.drupal.filter.CompiledLayerRules;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRule;
+import org.geoserver.security.impl.GeoServerRole;
+import org.junit.Test;
+
+public class CompiledLayerRulesTest {
+
+	private List<DataAccessRule> createRules() {
+		List<DataAccessRule> rules = new ArrayList<DataAccessRule>();
+		rules.add(new DataAccessRule("site", "roads", AccessMode.READ,
+				Collections.singleton("site_viewer")));
+		rules.add(new DataAccessRule("site", "parcels", AccessMode.WRITE,
+				Collections.singleton("site_editor")));
+		rules.add(new DataAccessRule("site", "*", AccessMode.ADMIN,
+				Collections.singleton("site_administrator")));
+		return rules;
+	}
+
+	@Test
+	public void compileByWorkspace() {
+		CompiledLayerRules compiled = new CompiledLayerRules(createRules(), 1);
+		DrupalAuthorizationIndex index = compiled.getIndex("site", 1);
+		assertNotNull(index);
+		assertEquals(Boolean.TRUE, index.canAccess(index.getRoleBits(Collections
+				.singleton(new GeoServerRole("site_viewer"))), "roads",
+				AccessMode.READ));
+		assertEquals(Boolean.TRUE, index.canAccess(index.getRoleBits(Collections
+				.singleton(new GeoServerRole("site_editor"))), "parcels",
+				AccessMode.WRITE));
+		// Workspace wide rules are left to the rule tree
+		assertNull(index.canAccess(index.getRoleBits(null), "roads",
+				AccessMode.ADMIN));
+		assertNull(compiled.getIndex("portal", 1));
+	}
+
+	/**
+	 * Drupal revoked a grant but the rule tree has not been rebuilt yet. The
+	 * index must keep deciding like the tree and step aside once the rules
+	 * changed.
+	 */
+	@Test
+	public void followRuleTree() {
+		// Rules the tree was built from, the grant is already gone in Drupal
+		CompiledLayerRules compiled = new CompiledLayerRules(createRules(), 1);
+		DrupalAuthorizationIndex index = compiled.getIndex("site", 1);
+		assertEquals(Boolean.TRUE, index.canAccess(index.getRoleBits(Collections
+				.singleton(new GeoServerRole("site_viewer"))), "roads",
+				AccessMode.READ));
+
+		// The rule DAO noticed the change, the tree is about to be rebuilt
+		assertNull(compiled.getIndex("site", 2));
+	}
+}
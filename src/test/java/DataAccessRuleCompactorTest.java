@@ -0,0 +1,84 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cartaro.geoserver.security.drupal.filter.DataAccessRuleCompactor;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRule;
+import org.junit.Test;
+
+public class DataAccessRuleCompactorTest {
+	private static final Set<String> EDITORS = Collections.singleton("site_editor");
+
+	private Map<String, Set<String>> layers(String... names) {
+		Map<String, Set<String>> layers = new HashMap<String, Set<String>>();
+		layers.put("site", new HashSet<String>(Arrays.asList(names)));
+		return layers;
+	}
+
+	@Test
+	public void collapseBlanketAccess() {
+		List<DataAccessRule> rules = new ArrayList<DataAccessRule>();
+		rules.add(new DataAccessRule("site", "roads", AccessMode.READ, EDITORS));
+		rules.add(new DataAccessRule("site", "rivers", AccessMode.READ, EDITORS));
+		rules.add(new DataAccessRule("site", "*", AccessMode.ADMIN, EDITORS));
+		List<DataAccessRule> compacted = DataAccessRuleCompactor.compact(rules,
+				layers("roads", "rivers"));
+		assertEquals(2, compacted.size());
+		assertTrue(compacted.contains(new DataAccessRule("site", "*",
+				AccessMode.READ, EDITORS)));
+		assertTrue(compacted.contains(new DataAccessRule("site", "*",
+				AccessMode.ADMIN, EDITORS)));
+		for (DataAccessRule rule : compacted) {
+			assertEquals(EDITORS, rule.getRoles());
+			assertEquals("site_editor", rule.getValue());
+		}
+	}
+
+	/**
+	 * A compacted workspace gets a rule of its own instead of inheriting
+	 * *.*.r, which limits it to the roles of its layers.
+	 */
+	@Test
+	public void limitWorkspaceToLayerRoles() {
+		List<DataAccessRule> rules = new ArrayList<DataAccessRule>();
+		rules.add(new DataAccessRule("site", "roads", AccessMode.READ, EDITORS));
+		List<DataAccessRule> compacted = DataAccessRuleCompactor.compact(rules,
+				layers("roads"));
+		assertEquals(1, compacted.size());
+		DataAccessRule workspaceRule = compacted.get(0);
+		assertEquals("site", workspaceRule.getRoot());
+		assertEquals(DataAccessRule.ANY, workspaceRule.getLayer());
+		assertEquals(AccessMode.READ, workspaceRule.getAccessMode());
+		assertEquals(EDITORS, workspaceRule.getRoles());
+	}
+
+	/**
+	 * Layers without rule must not inherit a workspace-wide rule.
+	 */
+	@Test
+	public void keepPartialCoverage() {
+		List<DataAccessRule> rules = new ArrayList<DataAccessRule>();
+		rules.add(new DataAccessRule("site", "roads", AccessMode.READ, EDITORS));
+		assertEquals(rules, DataAccessRuleCompactor.compact(rules,
+				layers("roads", "rivers")));
+	}
+
+	@Test
+	public void keepDifferentRoles() {
+		List<DataAccessRule> rules = new ArrayList<DataAccessRule>();
+		rules.add(new DataAccessRule("site", "roads", AccessMode.READ, EDITORS));
+		rules.add(new DataAccessRule("site", "rivers", AccessMode.READ,
+				new HashSet<String>(Arrays.asList("site_editor", "site_viewer"))));
+		assertEquals(2, DataAccessRuleCompactor.compact(rules,
+				layers("roads", "rivers")).size());
+	}
+}
@@ -0,0 +1,67 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.cartaro.geoserver.security.drupal.DrupalAuthorizationIndex;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.GeoServerRole;
+import org.junit.Test;
+
+public class DrupalAuthorizationIndexTest {
+
+	private DrupalAuthorizationIndex createIndex() {
+		Map<String, Set<String>> read = new HashMap<String, Set<String>>();
+		read.put("roads", new HashSet<String>(Arrays.asList("site_editor",
+				"site_viewer")));
+		read.put("parcels", Collections.singleton("*"));
+		Map<String, Set<String>> write = new HashMap<String, Set<String>>();
+		write.put("roads", Collections.singleton("site_editor"));
+		return new DrupalAuthorizationIndex(read, write);
+	}
+
+	@Test
+	public void grantByRole() {
+		DrupalAuthorizationIndex index = createIndex();
+		BitSet viewer = index.getRoleBits(Collections
+				.singleton(new GeoServerRole("site_viewer")));
+		assertEquals(Boolean.TRUE, index.canAccess(viewer, "roads",
+				AccessMode.READ));
+		assertEquals(Boolean.FALSE, index.canAccess(viewer, "roads",
+				AccessMode.WRITE));
+	}
+
+	@Test
+	public void grantAnybody() {
+		DrupalAuthorizationIndex index = createIndex();
+		BitSet anonymous = index.getRoleBits(null);
+		assertEquals(Boolean.TRUE, index.canAccess(anonymous, "parcels",
+				AccessMode.READ));
+		assertEquals(Boolean.FALSE, index.canAccess(anonymous, "roads",
+				AccessMode.READ));
+		assertTrue(index.isPublic("parcels", AccessMode.READ));
+		assertFalse(index.isPublic("parcels", AccessMode.WRITE));
+		assertFalse(index.isPublic("roads", AccessMode.READ));
+	}
+
+	/**
+	 * Layers and modes without permissions in Drupal are not decided.
+	 */
+	@Test
+	public void undecided() {
+		DrupalAuthorizationIndex index = createIndex();
+		BitSet editor = index.getRoleBits(Collections
+				.singleton(new GeoServerRole("site_editor")));
+		assertNull(index.canAccess(editor, "parcels", AccessMode.WRITE));
+		assertNull(index.canAccess(editor, "rivers", AccessMode.READ));
+		assertNull(index.canAccess(editor, "roads", AccessMode.ADMIN));
+	}
+}
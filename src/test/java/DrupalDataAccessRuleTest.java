@@ -0,0 +1,57 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cartaro.geoserver.security.drupal.DrupalDataAccessRule;
+import org.geoserver.security.AccessMode;
+import org.geoserver.security.impl.DataAccessRule;
+import org.junit.Test;
+
+public class DrupalDataAccessRuleTest {
+	@Test
+	public void shareRoles() {
+		Set<String> roles = Collections.unmodifiableSet(new HashSet<String>(
+				Arrays.asList("site_editor", "site_viewer")));
+		DataAccessRule roads = new DrupalDataAccessRule("site", "roads",
+				AccessMode.READ, roles);
+		DataAccessRule rivers = new DrupalDataAccessRule("site", "rivers",
+				AccessMode.READ, roles);
+		assertSame(roles, roads.getRoles());
+		assertSame(roads.getRoles(), rivers.getRoles());
+	}
+
+	@Test
+	public void value() {
+		DataAccessRule roads = new DrupalDataAccessRule("site", "roads",
+				AccessMode.READ, new HashSet<String>(Arrays.asList(
+						"site_editor", "site_viewer")));
+		String value = roads.getValue();
+		assertEquals(2, value.split(",").length);
+		assertTrue(value.contains("site_editor"));
+		assertTrue(value.contains("site_viewer"));
+		assertEquals(DataAccessRule.ANY, new DrupalDataAccessRule("site",
+				"roads", AccessMode.READ, Collections.<String> emptySet())
+				.getValue());
+	}
+
+	/**
+	 * Equal to a plain rule with the same roles since the superclass holds
+	 * them as well.
+	 */
+	@Test
+	public void matchPlainRule() {
+		Set<String> roles = Collections.singleton("site_editor");
+		DataAccessRule drupalRule = new DrupalDataAccessRule("site", "roads",
+				AccessMode.WRITE, roles);
+		DataAccessRule plainRule = new DataAccessRule("site", "roads",
+				AccessMode.WRITE, roles);
+		assertEquals(plainRule, drupalRule);
+		assertEquals(plainRule.hashCode(), drupalRule.hashCode());
+		assertEquals(plainRule.toString(), drupalRule.toString());
+	}
+}
@@ -5,6 +5,7 @@ import java.lang.reflect.Method;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.cartaro.geoserver.security.drupal.DrupalAuthenticationProvider;
+import org.cartaro.geoserver.security.drupal.DrupalPasswordHasher;
 import org.cartaro.geoserver.security.drupal.DrupalSecurityServiceConfig;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -50,4 +51,17 @@ public class DrupalPasswordTest {
 		String calcHash = (String) drupalPasswordCrypt.invoke(drupalAuthenticationProvider, "SHA-512", "drupal-7.12", "$S$DYz5lF6quR6RuLT0GZ2MxHJLz6CmpQyENhHOo1WmXmLi2bHzXjuK");
 		assertEquals("$S$DYz5lF6quR6RuLT0GZ2MxHJLz6CmpQyENhHOo1WmXmLi2bHzXjuK", calcHash);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Hashers get reused, thus consecutive hashes must not influence each other.
+	 */
+	@Test
+	public void testHasherReuse() {
+		DrupalPasswordHasher hasher = DrupalPasswordHasher.get();
+		assertSame(hasher, DrupalPasswordHasher.get());
+		String storedHash = "$S$DYz5lF6quR6RuLT0GZ2MxHJLz6CmpQyENhHOo1WmXmLi2bHzXjuK";
+		assertEquals(storedHash, hasher.crypt("drupal-7.12", storedHash));
+		assertFalse(storedHash.equals(hasher.crypt("drupal-7.13", storedHash)));
+		assertEquals(storedHash, hasher.crypt("drupal-7.12", storedHash));
+	}
+}
@@ -0,0 +1,56 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.cartaro.geoserver.security.drupal.DrupalRoleIndex;
+import org.cartaro.geoserver.security.drupal.DrupalSecuritySnapshot;
+import org.geoserver.security.impl.GeoServerRole;
+import org.junit.Test;
+
+public class DrupalRoleIndexTest {
+
+	private DrupalSecuritySnapshot createSnapshot(String... roleNames) {
+		TreeSet<GeoServerRole> roles = new TreeSet<GeoServerRole>();
+		for (String roleName : roleNames) {
+			roles.add(new GeoServerRole(roleName));
+		}
+		return new DrupalSecuritySnapshot("fp", false, 0, roles,
+				new TreeSet<GeoServerRole>(),
+				new HashMap<String, Set<String>>(),
+				new HashMap<String, Set<String>>(),
+				new HashMap<String, SortedSet<String>>());
+	}
+
+	@Test
+	public void lookupAcrossInstances() {
+		Map<String, DrupalSecuritySnapshot> snapshots = new HashMap<String, DrupalSecuritySnapshot>();
+		DrupalSecuritySnapshot site = createSnapshot("site_editor", "site_viewer");
+		snapshots.put("site", site);
+		snapshots.put("portal", createSnapshot("portal_editor"));
+		DrupalRoleIndex index = new DrupalRoleIndex(snapshots);
+
+		assertEquals(3, index.getRoles().size());
+		assertEquals("portal_editor", index.getRole("portal_editor").getAuthority());
+		assertNull(index.getRole("site_admin"));
+		assertSame(site, index.getSnapshot("site"));
+		assertEquals(2, index.getInstanceCount());
+	}
+
+	@Test
+	public void parentsAreNull() {
+		Map<String, DrupalSecuritySnapshot> snapshots = new HashMap<String, DrupalSecuritySnapshot>();
+		snapshots.put("site", createSnapshot("site_editor"));
+		Map<String, String> parents = new DrupalRoleIndex(snapshots)
+				.getParentMappings();
+		assertEquals(1, parents.size());
+		assertTrue(parents.containsKey("site_editor"));
+		assertNull(parents.get("site_editor"));
+	}
+}
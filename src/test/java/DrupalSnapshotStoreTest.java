@@ -0,0 +1,75 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.cartaro.geoserver.security.drupal.DrupalSecuritySnapshot;
+import org.cartaro.geoserver.security.drupal.DrupalSnapshotStore;
+import org.geoserver.security.impl.GeoServerRole;
+import org.junit.Test;
+
+public class DrupalSnapshotStoreTest {
+	private static final String SOURCE = "localhost:5432/drupal|i3_";
+
+	private File createDirectory() throws IOException {
+		File directory = File.createTempFile("drupal-snapshots", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private DrupalSecuritySnapshot createSnapshot() {
+		SortedSet<GeoServerRole> roles = new TreeSet<GeoServerRole>();
+		roles.add(new GeoServerRole("i3_editor"));
+		roles.add(new GeoServerRole("i3_administrator"));
+		SortedSet<GeoServerRole> admins = new TreeSet<GeoServerRole>();
+		admins.add(new GeoServerRole("i3_administrator"));
+		Map<String, Set<String>> readLayerRoles = new HashMap<String, Set<String>>();
+		readLayerRoles.put("roads", Collections.singleton("*"));
+		Map<String, Set<String>> writeLayerRoles = new HashMap<String, Set<String>>();
+		writeLayerRoles.put("roads", Collections.singleton("i3_editor"));
+		Map<String, SortedSet<String>> userNamesByRole = new HashMap<String, SortedSet<String>>();
+		userNamesByRole.put("i3_editor", new TreeSet<String>(Arrays.asList("i3_alice", "i3_bob")));
+		return new DrupalSecuritySnapshot("1:2|3:4", false, 1234L, roles,
+				admins, readLayerRoles, writeLayerRoles, userNamesByRole);
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		File directory = createDirectory();
+		DrupalSecuritySnapshot snapshot = createSnapshot();
+		new DrupalSnapshotStore(directory).save("i3", SOURCE, snapshot);
+
+		DrupalSnapshotStore store = new DrupalSnapshotStore(directory);
+		store.preload();
+		DrupalSecuritySnapshot loaded = store.load("i3", SOURCE);
+		assertEquals(snapshot.getFingerprint(), loaded.getFingerprint());
+		assertEquals(snapshot.getCreatedAt(), loaded.getCreatedAt());
+		assertEquals(snapshot.getRoles(), loaded.getRoles());
+		assertEquals(snapshot.getWorkspaceAdministrators(), loaded.getWorkspaceAdministrators());
+		assertEquals(snapshot.getReadLayerRoles(), loaded.getReadLayerRoles());
+		assertEquals(snapshot.getWriteLayerRoles(), loaded.getWriteLayerRoles());
+		assertEquals(snapshot.getUserNamesByRole(), loaded.getUserNamesByRole());
+	}
+
+	/**
+	 * Snapshots of another database or prefix must not be used.
+	 */
+	@Test
+	public void ignoreOtherSource() throws IOException {
+		File directory = createDirectory();
+		DrupalSnapshotStore store = new DrupalSnapshotStore(directory);
+		store.save("i3", SOURCE, createSnapshot());
+		assertNull(store.load("i3", "localhost:5432/other|i3_"));
+		assertNull(store.load("i4", SOURCE));
+	}
+}
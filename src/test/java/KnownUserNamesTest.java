@@ -0,0 +1,50 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.cartaro.geoserver.security.drupal.KnownUserNames;
+import org.cartaro.geoserver.security.drupal.UserNameFilter;
+import org.junit.Test;
+
+public class KnownUserNamesTest {
+
+	private KnownUserNames createNames() {
+		UserNameFilter filter = new UserNameFilter(100, 0.01);
+		filter.add("alice");
+		KnownUserNames names = new KnownUserNames(100, 60000);
+		names.setFilter(filter, "1:42");
+		return names;
+	}
+
+	/**
+	 * A user who registered after the filter was built is skipped by lookups
+	 * but still authenticated by Drupal.
+	 */
+	@Test
+	public void addedAfterFilter() {
+		KnownUserNames names = createNames();
+		assertFalse(names.isUnknown("alice"));
+		assertTrue(names.isUnknown("bob"));
+		assertFalse(names.isRecentlyUnknown("bob"));
+		// Drupal found bob, so the filter needs to be rebuilt
+		assertTrue(names.isMissing("bob"));
+		assertFalse(names.isMissing("alice"));
+	}
+
+	@Test
+	public void rememberUnknown() {
+		KnownUserNames names = createNames();
+		names.setUnknown("mallory");
+		assertTrue(names.isRecentlyUnknown("mallory"));
+		names.clearUnknown();
+		assertFalse(names.isRecentlyUnknown("mallory"));
+	}
+
+	@Test
+	public void withoutFilter() {
+		KnownUserNames names = createNames();
+		names.reset();
+		assertFalse(names.hasFilter());
+		assertFalse(names.isUnknown("bob"));
+		assertFalse(names.isMissing("bob"));
+	}
+}
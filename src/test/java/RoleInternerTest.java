@@ -0,0 +1,61 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.cartaro.geoserver.security.drupal.RoleInterner;
+import org.geoserver.security.impl.GeoServerRole;
+import org.junit.Test;
+
+public class RoleInternerTest {
+	@Test
+	public void sharedRoles() {
+		final RoleInterner interner = new RoleInterner();
+		final GeoServerRole editor = interner.getRole("drupal_editor");
+		assertEquals("drupal_editor", editor.getAuthority());
+		assertSame(editor, interner.getRole(new String("drupal_editor")));
+		assertNotSame(editor, interner.getRole("drupal_reader"));
+	}
+
+	@Test
+	public void sharedRoleNames() {
+		final RoleInterner interner = new RoleInterner();
+		final Set<String> first = interner.getRoleNames(new HashSet<String>(
+				Arrays.asList("drupal_editor", "drupal_reader")));
+		final Set<String> second = interner.getRoleNames(new TreeSet<String>(
+				Arrays.asList("drupal_reader", "drupal_editor")));
+		assertSame(first, second);
+		assertNotSame(first, interner.getRoleNames(new HashSet<String>(
+				Arrays.asList("drupal_editor"))));
+		assertEquals(2, interner.getRoleNamesCount());
+	}
+
+	@Test
+	public void unmodifiableRoleNames() {
+		final RoleInterner interner = new RoleInterner();
+		try {
+			interner.getRoleNames(new HashSet<String>(Arrays.asList("*")))
+					.add("drupal_editor");
+			fail("Shared sets must not be modified");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void sharedUserRoles() {
+		final RoleInterner interner = new RoleInterner();
+		final TreeSet<GeoServerRole> roles = new TreeSet<GeoServerRole>();
+		roles.add(interner.getRole("drupal_authenticated user"));
+		roles.add(interner.getRole("drupal_editor"));
+		final SortedSet<GeoServerRole> shared = interner.getRoles(roles);
+		assertSame(shared, interner.getRoles(new TreeSet<GeoServerRole>(roles)));
+		assertEquals(roles, shared);
+	}
+}
@@ -0,0 +1,79 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cartaro.geoserver.security.drupal.SingleFlight;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	/**
+	 * Callers arriving while a load is in flight must share it.
+	 */
+	@Test
+	public void coalesceConcurrentLoads() throws Exception {
+		final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<Integer> loader = new Callable<Integer>() {
+			public Integer call() throws Exception {
+				started.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				return loads.incrementAndGet();
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<Integer> first = executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return flight.execute("admin", loader);
+				}
+			});
+			started.await(5, TimeUnit.SECONDS);
+			Future<Integer> second = executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return flight.execute("admin", loader);
+				}
+			});
+			// Give the second caller time to join the flight
+			Thread.sleep(100);
+			release.countDown();
+			assertEquals(Integer.valueOf(1), first.get());
+			assertEquals(Integer.valueOf(1), second.get());
+			assertEquals(1, loads.get());
+			assertEquals(0, flight.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void failuresAreNotKept() throws Exception {
+		SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+		try {
+			flight.execute("admin", new Callable<Integer>() {
+				public Integer call() throws Exception {
+					throw new IOException("down");
+				}
+			});
+			fail("Failure must be passed on");
+		} catch (IOException e) {
+			assertEquals("down", e.getMessage());
+		}
+		assertEquals(Integer.valueOf(2), flight.execute("admin",
+				new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return 2;
+					}
+				}));
+	}
+}
@@ -0,0 +1,36 @@
+import static org.junit.Assert.assertTrue;
+
+import org.cartaro.geoserver.security.drupal.UserNameFilter;
+import org.junit.Test;
+
+public class UserNameFilterTest {
+
+	@Test
+	public void containsAddedNames() {
+		UserNameFilter filter = new UserNameFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("user" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("user" + i));
+		}
+	}
+
+	/**
+	 * Most unknown names must be recognized as absent.
+	 */
+	@Test
+	public void rejectsUnknownNames() {
+		UserNameFilter filter = new UserNameFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("user" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("stranger" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 300);
+	}
+}
@@ -0,0 +1,37 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.cartaro.geoserver.security.drupal.VerifiedCredentialCache;
+import org.junit.Test;
+
+public class VerifiedCredentialCacheTest {
+	private static final String HASH = "$S$DYz5lF6quR6RuLT0GZ2MxHJLz6CmpQyENhHOo1WmXmLi2bHzXjuK";
+
+	@Test
+	public void rememberSuccessfulVerification() {
+		VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60000);
+		assertFalse(cache.isVerified("admin", "drupal-7.12", HASH));
+		cache.setVerified("admin", "drupal-7.12", HASH);
+		assertTrue(cache.isVerified("admin", "drupal-7.12", HASH));
+		assertFalse(cache.isVerified("admin", "wrong", HASH));
+		assertFalse(cache.isVerified("other", "drupal-7.12", HASH));
+	}
+
+	/**
+	 * Changing a password in Drupal must invalidate the remembered credentials.
+	 */
+	@Test
+	public void forgetOnChangedHash() {
+		VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60000);
+		cache.setVerified("admin", "drupal-7.12", HASH);
+		assertFalse(cache.isVerified("admin", "drupal-7.12", HASH + "x"));
+		assertFalse(cache.isVerified("admin", "drupal-7.12", HASH));
+	}
+
+	@Test
+	public void disabledCache() {
+		VerifiedCredentialCache cache = new VerifiedCredentialCache(0, 60000);
+		cache.setVerified("admin", "drupal-7.12", HASH);
+		assertFalse(cache.isVerified("admin", "drupal-7.12", HASH));
+	}
+}